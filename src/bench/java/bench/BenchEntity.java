@@ -0,0 +1,28 @@
+package bench;
+
+import cn.xnatural.jpa.LongIdEntity;
+
+import javax.persistence.Entity;
+
+/**
+ * 基准测试实体
+ */
+@Entity
+public class BenchEntity extends LongIdEntity {
+    private String  name;
+    private Integer age;
+
+    public String getName() { return name; }
+
+    public BenchEntity setName(String name) {
+        this.name = name;
+        return this;
+    }
+
+    public Integer getAge() { return age; }
+
+    public BenchEntity setAge(Integer age) {
+        this.age = age;
+        return this;
+    }
+}
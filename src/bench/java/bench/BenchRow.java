@@ -0,0 +1,22 @@
+package bench;
+
+/**
+ * sql 结果行 bean: 测 {@link cn.xnatural.jpa.RowMapper}
+ */
+public class BenchRow {
+    private Long    id;
+    private String  name;
+    private Integer age;
+
+    public Long getId() { return id; }
+
+    public void setId(Long id) { this.id = id; }
+
+    public String getName() { return name; }
+
+    public void setName(String name) { this.name = name; }
+
+    public Integer getAge() { return age; }
+
+    public void setAge(Integer age) { this.age = age; }
+}
@@ -0,0 +1,20 @@
+package bench;
+
+import cn.xnatural.jpa.SeqIdEntity;
+
+import javax.persistence.Entity;
+
+/**
+ * 基准测试实体: 序列表 id 实体
+ */
+@Entity
+public class BenchSeqEntity extends SeqIdEntity {
+    private String name;
+
+    public String getName() { return name; }
+
+    public BenchSeqEntity setName(String name) {
+        this.name = name;
+        return this;
+    }
+}
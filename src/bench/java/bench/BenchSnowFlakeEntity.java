@@ -0,0 +1,20 @@
+package bench;
+
+import cn.xnatural.jpa.SnowFlakeIdEntity;
+
+import javax.persistence.Entity;
+
+/**
+ * 基准测试实体: SnowFlake id 实体
+ */
+@Entity
+public class BenchSnowFlakeEntity extends SnowFlakeIdEntity {
+    private String name;
+
+    public String getName() { return name; }
+
+    public BenchSnowFlakeEntity setName(String name) {
+        this.name = name;
+        return this;
+    }
+}
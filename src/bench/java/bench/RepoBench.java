@@ -0,0 +1,180 @@
+package bench;
+
+import cn.xnatural.jpa.Page;
+import cn.xnatural.jpa.Repo;
+import cn.xnatural.jpa.SnowFlakeIdGenerator;
+import cn.xnatural.jpa.TimeUUIDGenerator;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.metamodel.spi.MetamodelImplementor;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Serializable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Repo} 常用方法吞吐量: H2 内存库, 预置 {@link #ROWS} 条读数据, {@link #WRITE_ROWS} 条写数据(写不影响读的结果)
+ * 线程数固定为 1/4/16: {@link T1}, {@link T4}, {@link T16}. 每次调用的内存分配: -prof gc (看 gc.alloc.rate.norm)
+ * mvn -P bench test-compile exec:exec -Djmh.args="RepoBench -prof gc"
+ * 只跑4线程: -Djmh.args="RepoBench.T4"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class RepoBench {
+    static final int ROWS       = 10000;
+    /**
+     * 写数据: id 在 (ROWS, ROWS + WRITE_ROWS], age 为 -1, name 以 w 开头. 不会被读方法查到
+     */
+    static final int WRITE_ROWS = 1000;
+    static final int PAGE_SIZE  = 20;
+    static final String LIST_SQL = "select id, name, age from bench_entity where id between ? and ?";
+    Repo                 repo;
+    SnowFlakeIdGenerator snowFlake;
+    IdentifierGenerator  seqId;
+
+
+    @Threads(1)
+    public static class T1 extends RepoBench {}
+
+    @Threads(4)
+    public static class T4 extends RepoBench {}
+
+    @Threads(16)
+    public static class T16 extends RepoBench {}
+
+
+    @Setup
+    public void setup() {
+        repo = new Repo("jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1")
+                .setAttr("maxActive", 32) // 够16个线程用
+                .setAttr("rowMapper.looseMatch", true) // H2 列名大写
+                .setAttr("hibernate.hbm2ddl.auto", "create")
+                .entities(BenchEntity.class, BenchSnowFlakeEntity.class, BenchSeqEntity.class).init();
+        List<BenchEntity> es = new ArrayList<>(ROWS + WRITE_ROWS);
+        for (int i = 1; i <= ROWS; i++) es.add(new BenchEntity().setName("n" + i).setAge(i % 100));
+        for (int i = 1; i <= WRITE_ROWS; i++) es.add(new BenchEntity().setName("w" + i).setAge(-1));
+        repo.saveAll(es);
+        snowFlake = new SnowFlakeIdGenerator(1, 1);
+        seqId = ((MetamodelImplementor) repo.getSessionFactory().getMetamodel()).entityPersister(BenchSeqEntity.class).getIdentifierGenerator();
+    }
+
+
+    /**
+     * 每个线程一个会话: 给 {@link #seqId(ThreadSession)} 号段用完时取连接
+     */
+    @State(Scope.Thread)
+    public static class ThreadSession {
+        Session session;
+
+        @TearDown
+        public void tearDown() { if (session != null) session.close(); }
+    }
+
+
+    @TearDown
+    public void tearDown() { repo.close(); }
+
+
+    static long randomId() { return ThreadLocalRandom.current().nextLong(1, ROWS + 1); }
+
+
+    @Benchmark
+    public BenchEntity byId() { return repo.byId(BenchEntity.class, randomId()); }
+
+
+    @Benchmark
+    public BenchEntity byAttr() { return repo.byAttr(BenchEntity.class, "name", "n" + randomId()); }
+
+
+    @Benchmark
+    public List<Map> rowsMap() {
+        long start = ThreadLocalRandom.current().nextLong(1, ROWS - PAGE_SIZE);
+        return repo.rows(LIST_SQL, Map.class, start, start + PAGE_SIZE - 1);
+    }
+
+
+    @Benchmark
+    public List<BenchRow> rowsBean() {
+        long start = ThreadLocalRandom.current().nextLong(1, ROWS - PAGE_SIZE);
+        return repo.rows(LIST_SQL, BenchRow.class, start, start + PAGE_SIZE - 1);
+    }
+
+
+    @Benchmark
+    public Page<Map> pagingShallow() {
+        return repo.paging("select id, name, age from bench_entity where age > ? order by id", 1, PAGE_SIZE, 10);
+    }
+
+
+    @Benchmark
+    public Page<Map> pagingDeep() {
+        // 偏移约 8500 行, 接近最后一页
+        return repo.paging("select id, name, age from bench_entity where age > ? order by id", (int) (ROWS * 0.85 / PAGE_SIZE), PAGE_SIZE, 10);
+    }
+
+
+    @Benchmark
+    public BenchEntity saveOrUpdate() {
+        BenchEntity e = new BenchEntity().setName("w" + ThreadLocalRandom.current().nextInt()).setAge(-1);
+        e.setId(ROWS + ThreadLocalRandom.current().nextLong(1, WRITE_ROWS + 1));
+        return repo.saveOrUpdate(e);
+    }
+
+
+    /**
+     * 插入: IDENTITY 主键
+     */
+    @Benchmark
+    public BenchEntity insertIdentity() { return repo.saveOrUpdate(new BenchEntity().setName("i").setAge(-1)); }
+
+
+    /**
+     * 插入: SnowFlake 主键
+     */
+    @Benchmark
+    public BenchSnowFlakeEntity insertSnowFlake() { return repo.saveOrUpdate(new BenchSnowFlakeEntity().setName("i")); }
+
+
+    /**
+     * 插入: 序列表主键
+     */
+    @Benchmark
+    public BenchSeqEntity insertSeqId() { return repo.saveOrUpdate(new BenchSeqEntity().setName("i")); }
+
+
+    @Benchmark
+    public long count() { return repo.count(BenchEntity.class, "age", 10); }
+
+
+    @Benchmark
+    public boolean exist() { return repo.exist(BenchEntity.class, "age", 10); }
+
+
+    @Benchmark
+    public String timeUUID() { return TimeUUIDGenerator.nextId(); }
+
+
+    @Benchmark
+    public long segmentId() { return repo.segmentId("bench"); }
+
+
+    @Benchmark
+    public long snowFlakeId() { return snowFlake.nextId(); }
+
+
+    @Benchmark
+    public Serializable seqId(ThreadSession ts) {
+        if (ts.session == null) ts.session = repo.getSessionFactory().openSession();
+        return seqId.generate((SharedSessionContractImplementor) ts.session, null);
+    }
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import cn.xnatural.jpa.SnowFlakeIdGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SnowFlake id 生成吞吐量
+ * mvn -P bench test-compile exec:exec -Djmh.args="SnowFlakeIdBench -t 8"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnowFlakeIdBench {
+    SnowFlakeIdGenerator generator;
+
+    @Setup
+    public void setup() {
+        generator = new SnowFlakeIdGenerator(1, 1);
+    }
+
+
+    @Benchmark
+    @Threads(1)
+    public long nextId() { return generator.nextId(); }
+
+
+    @Benchmark
+    @Threads(8)
+    public long nextId8Threads() { return generator.nextId(); }
+
+
+    @Benchmark
+    @Threads(8)
+    @OperationsPerInvocation(64)
+    public long[] nextIds64x8Threads() { return generator.nextIds(64); }
+
+
+    /**
+     * 打印几个 id 看看
+     */
+    public static void main(String[] args) {
+        SnowFlakeIdGenerator idGenerator = new SnowFlakeIdGenerator(1, 1);
+        for (int i = 0; i < 10; i++) {
+            System.out.println(idGenerator.nextId());
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.Session;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 异步 {@link Repo}: 在专用线程池中执行, 返回 {@link CompletableFuture}
+ * 1. 默认线程池大小同连接池最大连接数(属性 maxActive/maximumPoolSize, 默认8)
+ * 2. 排队+执行中的任务数超过 maxPending 时立即失败({@link RejectedExecutionException}), 不会无限等待连接
+ * 3. 每个任务在线程池线程中执行, 不能加入调用线程的事务
+ */
+public class AsyncRepo implements AutoCloseable {
+    protected final Repo            repo;
+    protected final Executor        exec;
+    /**
+     * 线程池是否为自己创建: 关闭时一起关闭
+     */
+    protected final boolean         ownExec;
+    /**
+     * 最多排队+执行中的任务数
+     */
+    protected final int             maxPending;
+    protected final Semaphore       permits;
+    protected final AtomicLong      rejected = new AtomicLong();
+
+
+    /**
+     * 默认线程池, 最多排队+执行中的任务数为线程数的16倍
+     * @param repo {@link Repo}
+     */
+    public AsyncRepo(Repo repo) { this(repo, null, 0); }
+
+
+    /**
+     * @param repo {@link Repo}
+     * @param exec 线程池. null: 默认(大小同连接池最大连接数)
+     * @param maxPending 最多排队+执行中的任务数. <=0: 线程数的16倍
+     */
+    public AsyncRepo(Repo repo, Executor exec, int maxPending) {
+        if (repo == null) throw new IllegalArgumentException("Param repo required");
+        this.repo = repo;
+        int size = poolSize(repo);
+        this.ownExec = exec == null;
+        if (exec == null) {
+            AtomicInteger i = new AtomicInteger();
+            // 队列不设上限: 由 permits 限制
+            ThreadPoolExecutor tpe = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "repo-async-" + i.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+            tpe.allowCoreThreadTimeOut(true);
+            exec = tpe;
+        }
+        this.exec = exec;
+        this.maxPending = maxPending > 0 ? maxPending : size * 16;
+        this.permits = new Semaphore(this.maxPending);
+    }
+
+
+    /**
+     * 连接池最大连接数
+     */
+    protected static int poolSize(Repo repo) {
+        Object v = repo.getAttr("maxActive");
+        if (v == null || v.toString().isEmpty()) v = repo.getAttr("maximumPoolSize");
+        return v == null || v.toString().isEmpty() ? 8 : Math.max(1, Integer.parseInt(v.toString()));
+    }
+
+
+    /**
+     * 虚拟线程的线程池(JDK 21+)
+     * @return null: 不支持
+     */
+    public static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+
+    /**
+     * 异步执行
+     * @param fn 函数
+     * @return {@link CompletableFuture}. 任务数超过 maxPending 时立即以 {@link RejectedExecutionException} 失败
+     */
+    public <T> CompletableFuture<T> submit(Function<Repo, T> fn) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        CompletableFuture<T> f = new CompletableFuture<>();
+        if (!permits.tryAcquire()) {
+            rejected.incrementAndGet();
+            f.completeExceptionally(new RejectedExecutionException("Too many pending repo tasks: " + maxPending));
+            return f;
+        }
+        try {
+            exec.execute(() -> {
+                // 先释放再完成: 调用方在回调中提交的任务不会因本任务而被拒绝
+                if (f.isDone()) { permits.release(); return; } // 已取消的不执行
+                T r;
+                try {
+                    r = fn.apply(repo);
+                } catch (Throwable ex) {
+                    permits.release();
+                    f.completeExceptionally(ex);
+                    return;
+                }
+                permits.release();
+                f.complete(r);
+            });
+        } catch (RejectedExecutionException ex) {
+            permits.release();
+            rejected.incrementAndGet();
+            f.completeExceptionally(ex);
+        }
+        return f;
+    }
+
+
+    /**
+     * {@link Repo#trans(Function)}
+     */
+    public <T> CompletableFuture<T> transAsync(Function<Session, T> fn) { return submit(r -> r.trans(fn)); }
+
+
+    /**
+     * {@link Repo#saveOrUpdate(IEntity)}
+     */
+    public <E extends IEntity> CompletableFuture<E> saveOrUpdateAsync(E entity) { return submit(r -> r.saveOrUpdate(entity)); }
+
+
+    /**
+     * {@link Repo#saveAll(Collection)}
+     */
+    public <E extends IEntity> CompletableFuture<Collection<E>> saveAllAsync(Collection<E> entities) { return submit(r -> r.saveAll(entities)); }
+
+
+    /**
+     * {@link Repo#byId(Class, Serializable)}
+     */
+    public <E extends IEntity> CompletableFuture<E> byIdAsync(Class<E> eType, Serializable id) { return submit(r -> r.byId(eType, id)); }
+
+
+    /**
+     * {@link Repo#byAttr(Class, String, Object)}
+     */
+    public <E extends IEntity> CompletableFuture<E> byAttrAsync(Class<E> eType, String attrName, Object attrValue) {
+        return submit(r -> r.byAttr(eType, attrName, attrValue));
+    }
+
+
+    /**
+     * {@link Repo#row(Class, CriteriaSpec)}
+     */
+    public <E extends IEntity> CompletableFuture<E> rowAsync(Class<E> eType, CriteriaSpec<E, E> spec) { return submit(r -> r.row(eType, spec)); }
+
+
+    /**
+     * {@link Repo#rows(Class, CriteriaSpec)}
+     */
+    public <E extends IEntity> CompletableFuture<List<E>> rowsAsync(Class<E> eType, CriteriaSpec<E, E> spec) { return submit(r -> r.rows(eType, spec)); }
+
+
+    /**
+     * {@link Repo#paging(Class, Integer, Integer, CriteriaSpec)}
+     */
+    public <E extends IEntity> CompletableFuture<Page<E>> pagingAsync(Class<E> eType, Integer page, Integer limit, CriteriaSpec<E, E> listSpec) {
+        return submit(r -> r.paging(eType, page, limit, listSpec));
+    }
+
+
+    /**
+     * {@link Repo#count(Class, CriteriaSpec)}
+     */
+    public <E extends IEntity> CompletableFuture<Long> countAsync(Class<E> eType, CriteriaSpec<E, Long> spec) { return submit(r -> r.count(eType, spec)); }
+
+
+    /**
+     * {@link Repo#exist(Class, CriteriaSpec)}
+     */
+    public <E extends IEntity> CompletableFuture<Boolean> existAsync(Class<E> eType, CriteriaSpec<E, Long> spec) { return submit(r -> r.exist(eType, spec)); }
+
+
+    /**
+     * {@link Repo#delete(IEntity)}
+     */
+    public <E extends IEntity> CompletableFuture<Void> deleteAsync(E entity) {
+        return submit(r -> { r.delete(entity); return null; });
+    }
+
+
+    /**
+     * {@link Repo#delete(Class, Serializable)}
+     */
+    public <E extends IEntity> CompletableFuture<Boolean> deleteAsync(Class<E> eType, Serializable id) { return submit(r -> r.delete(eType, id)); }
+
+
+    /**
+     * {@link Repo#execute(String, Object...)}
+     */
+    public CompletableFuture<Integer> executeAsync(String sql, Object... params) { return submit(r -> r.execute(sql, params)); }
+
+
+    /**
+     * {@link Repo#row(String, Class, Object...)}
+     */
+    public <R> CompletableFuture<R> rowAsync(String sql, Class<R> wrap, Object... params) { return submit(r -> r.row(sql, wrap, params)); }
+
+
+    /**
+     * {@link Repo#rows(String, Class, Object...)}
+     */
+    public <R> CompletableFuture<List<R>> rowsAsync(String sql, Class<R> wrap, Object... params) { return submit(r -> r.rows(sql, wrap, params)); }
+
+
+    /**
+     * {@link Repo#paging(String, Integer, Integer, Class, Object...)}
+     */
+    public <R> CompletableFuture<Page<R>> pagingAsync(String sql, Integer page, Integer limit, Class<R> wrap, Object... params) {
+        return submit(r -> r.paging(sql, page, limit, wrap, params));
+    }
+
+
+    public Repo getRepo() { return repo; }
+
+    /**
+     * 排队+执行中的任务数
+     */
+    public int getPending() { return maxPending - permits.availablePermits(); }
+
+    public int getMaxPending() { return maxPending; }
+
+    /**
+     * 被拒绝的任务数
+     */
+    public long getRejected() { return rejected.get(); }
+
+
+    /**
+     * 关闭默认线程池(不关闭 {@link Repo})
+     */
+    @Override
+    public void close() {
+        if (ownExec) ((ExecutorService) exec).shutdown();
+    }
+
+
+    @Override
+    public String toString() {
+        return "AsyncRepo@" + Integer.toHexString(hashCode()) + "{pending=" + getPending() + ", maxPending=" + maxPending + ", rejected=" + rejected + '}';
+    }
+}
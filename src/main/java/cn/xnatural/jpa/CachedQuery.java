@@ -0,0 +1,122 @@
+package cn.xnatural.jpa;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * 带结果缓存的 sql 查询 {@link Repo#cache()}
+ * 缓存key: sql + 结果包装类型 + 参数. 缓存的结果被多个调用方共享, 不要修改
+ * 1. 查询涉及的表默认从 sql 解析(from, join), 也可以 {@link #tables(String...)} 指定
+ * 2. 同一个 {@link Repo} 的 execute, executeBatch, saveOrUpdate, saveAll, delete 写表时, 相关缓存失效
+ * 3. 在事务中查询不走缓存
+ */
+public class CachedQuery {
+    protected final Repo        repo;
+    protected final QueryCache  cache;
+    /**
+     * 指定的表. null: 从 sql 解析
+     */
+    protected       Set<String> tables;
+    /**
+     * 过期时间(毫秒). null: 默认
+     */
+    protected       Long        ttl;
+
+
+    protected CachedQuery(Repo repo, QueryCache cache) {
+        this.repo = repo;
+        this.cache = cache;
+    }
+
+
+    /**
+     * 指定查询涉及的表(sql 解析不准时)
+     * @param tables 表名
+     * @return {@link CachedQuery}
+     */
+    public CachedQuery tables(String... tables) {
+        if (tables == null || tables.length == 0) throw new IllegalArgumentException("Param tables required");
+        Set<String> set = new HashSet<>();
+        for (String t : tables) set.add(QueryCache.normalize(t));
+        this.tables = set;
+        return this;
+    }
+
+
+    /**
+     * 指定过期时间
+     * @param ttl 过期时间(毫秒) >=1
+     * @return {@link CachedQuery}
+     */
+    public CachedQuery ttl(long ttl) {
+        if (ttl < 1) throw new IllegalArgumentException("Param ttl >=1");
+        this.ttl = ttl;
+        return this;
+    }
+
+
+    /**
+     * {@link Repo#row(String, Class, Object...)}
+     */
+    public Map<String, Object> row(String sql, Object... params) { return row(sql, Map.class, params); }
+
+
+    /**
+     * {@link Repo#row(String, Class, Object...)}
+     */
+    public <R> R row(String sql, Class<R> wrap, Object... params) {
+        if (sql == null || sql.isEmpty()) throw new IllegalArgumentException("Param sql required");
+        if (wrap == null) throw new IllegalArgumentException("Param warp required");
+        return load("row", sql, wrap, params, () -> repo.row(sql, wrap, params));
+    }
+
+
+    /**
+     * {@link Repo#rows(String, Class, Object...)}
+     */
+    public List<Map> rows(String sql, Object... params) { return rows(sql, Map.class, params); }
+
+
+    /**
+     * {@link Repo#rows(String, Class, Object...)}
+     * @return 不可修改的列表
+     */
+    public <R> List<R> rows(String sql, Class<R> wrap, Object... params) {
+        if (sql == null || sql.isEmpty()) throw new IllegalArgumentException("Param sql required");
+        if (wrap == null) throw new IllegalArgumentException("Param warp required");
+        return load("rows", sql, wrap, params, () -> Collections.unmodifiableList(repo.rows(sql, wrap, params)));
+    }
+
+
+    /**
+     * {@link Repo#paging(String, Integer, Integer, Class, Object...)}
+     */
+    public Page<Map> paging(String sql, Integer page, Integer limit, Object... params) {
+        return paging(sql, page, limit, Map.class, params);
+    }
+
+
+    /**
+     * {@link Repo#paging(String, Integer, Integer, Class, Object...)}
+     * @return 新的 {@link Page}, 列表不可修改
+     */
+    public <T> Page<T> paging(String sql, Integer page, Integer limit, Class<T> wrap, Object... params) {
+        if (sql == null || sql.isEmpty()) throw new IllegalArgumentException("Param sql required");
+        if (wrap == null) throw new IllegalArgumentException("Param warp required");
+        if (page == null || page < 1) throw new IllegalArgumentException("Param page >=1");
+        if (limit == null || limit < 1) throw new IllegalArgumentException("Param limit >=1");
+        Page<T> p = load("paging:" + page + ":" + limit, sql, wrap, params, () -> {
+            Page<T> r = repo.paging(sql, page, limit, wrap, params);
+            return r.setList(Collections.unmodifiableList(new ArrayList<>(r.getList())));
+        });
+        // Page 可修改, 返回副本
+        return new Page<T>().setPage(p.getPage()).setPageSize(p.getPageSize()).setTotalRow(p.getTotalRow()).setHasNext(p.getHasNext()).setList(p.getList());
+    }
+
+
+    protected <T> T load(String kind, String sql, Class<?> wrap, Object[] params, Supplier<T> loader) {
+        if (repo.inTrans()) return loader.get();
+        String key = kind + "\n" + wrap.getName() + "\n" + sql + "\n" + Arrays.deepToString(params);
+        return cache.get(key, tables == null ? QueryCache.readTables(sql) : tables, ttl, loader);
+    }
+}
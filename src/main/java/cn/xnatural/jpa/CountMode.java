@@ -0,0 +1,24 @@
+package cn.xnatural.jpa;
+
+/**
+ * 分页查询时总条数的统计方式
+ */
+public enum CountMode {
+    /**
+     * 每次都执行 count 查询
+     */
+    EXACT,
+    /**
+     * 不统计总条数: 多查一条判断是否有下一页 {@link Page#getHasNext()}
+     */
+    NONE,
+    /**
+     * 总条数缓存一段时间(属性 countCacheTtl 毫秒, 默认 60000), 缓存key: sql + 参数. 表被写(同一个 Repo)时失效
+     */
+    CACHED,
+    /**
+     * 数据库支持窗口函数时(h2, mysql8, postgresql ...), 用 count(*) over() 一次查询同时得到总条数
+     * 不支持时同 {@link #EXACT}
+     */
+    WINDOW
+}
@@ -0,0 +1,67 @@
+package cn.xnatural.jpa;
+
+/**
+ * 同 java.util.concurrent.Flow(JDK 9+) 的响应式流接口. 本项目编译目标为 java 8
+ * 方法签名与 JDK 的一致, JDK 9+ 可简单适配为 java.util.concurrent.Flow
+ */
+public final class Flow {
+    private Flow() {}
+
+
+    /**
+     * 数据发布者
+     * @param <T> 数据类型
+     */
+    @FunctionalInterface
+    public interface Publisher<T> {
+        /**
+         * 添加订阅者
+         * @param subscriber 订阅者
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+
+    /**
+     * 数据订阅者
+     * @param <T> 数据类型
+     */
+    public interface Subscriber<T> {
+        /**
+         * 订阅开始. 调用 {@link Subscription#request(long)} 后才会收到数据
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * 一条数据
+         */
+        void onNext(T item);
+
+        /**
+         * 出错结束
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * 正常结束
+         */
+        void onComplete();
+    }
+
+
+    /**
+     * 订阅
+     */
+    public interface Subscription {
+        /**
+         * 请求 n 条数据
+         * @param n >=1
+         */
+        void request(long n);
+
+        /**
+         * 取消订阅
+         */
+        void cancel();
+    }
+}
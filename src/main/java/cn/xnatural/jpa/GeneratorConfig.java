@@ -0,0 +1,36 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.service.ServiceRegistry;
+
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * id 生成器配置读取: @GenericGenerator parameters 优先, 其次 hibernate 属性(Repo 属性)
+ */
+final class GeneratorConfig {
+    private GeneratorConfig() {}
+
+
+    /**
+     * hibernate 属性
+     */
+    static Map<?, ?> settings(ServiceRegistry serviceRegistry) {
+        return serviceRegistry.getService(ConfigurationService.class).getSettings();
+    }
+
+
+    /**
+     * 读取配置
+     * @param params @GenericGenerator parameters
+     * @param settings hibernate 属性
+     * @param key 配置key
+     * @param defaultValue 默认值(不存在或为空时)
+     */
+    static String get(Properties params, Map<?, ?> settings, String key, String defaultValue) {
+        Object v = params == null ? null : params.get(key);
+        if (v == null && settings != null) v = settings.get(key);
+        return v == null || v.toString().isEmpty() ? defaultValue : v.toString();
+    }
+}
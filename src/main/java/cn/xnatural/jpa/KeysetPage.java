@@ -0,0 +1,78 @@
+package cn.xnatural.jpa;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 游标(keyset)分页数据结构
+ * 下一页查询时把 {@link #getNextKey()} 作为 afterKey 传入
+ * @param <E>
+ */
+public class KeysetPage<E> {
+    /**
+     * 一页数据大小
+     */
+    private Integer       pageSize;
+    /**
+     * 下一页的游标: 当前页最后一条数据的排序字段值. null: 没有下一页
+     */
+    private Object[]      nextKey;
+    /**
+     * 当前页数据
+     */
+    private Collection<E> list;
+
+
+    /**
+     * 创建一个空的{@link KeysetPage}
+     */
+    public static <E> KeysetPage<E> empty() {
+        return new KeysetPage<E>().setPageSize(1).setList(Collections.emptyList());
+    }
+
+
+    /**
+     * 转换
+     * @param fn 转换函数
+     * @param <T> 转换类型
+     * @return KeysetPage 转换后的KeysetPage
+     */
+    public <T> KeysetPage<T> to(Function<E, T> fn) {
+        return new KeysetPage<T>().setPageSize(pageSize).setNextKey(nextKey).setList(list.stream().map(e -> fn.apply(e)).collect(Collectors.toList()));
+    }
+
+
+    /**
+     * 是否有下一页
+     */
+    public boolean isHasNext() { return nextKey != null; }
+
+    public Integer getPageSize() { return pageSize; }
+
+    public KeysetPage<E> setPageSize(Integer pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public Object[] getNextKey() { return nextKey; }
+
+    public KeysetPage<E> setNextKey(Object[] nextKey) {
+        this.nextKey = nextKey;
+        return this;
+    }
+
+    public Collection<E> getList() { return list; }
+
+    public KeysetPage<E> setList(Collection<E> list) {
+        this.list = list;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "KeysetPage@" + Integer.toHexString(hashCode()) + "{pageSize=" + pageSize + ", nextKey=" + Arrays.toString(nextKey) + ", list=" + list + '}';
+    }
+}
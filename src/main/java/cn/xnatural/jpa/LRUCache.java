@@ -0,0 +1,146 @@
+package cn.xnatural.jpa;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * 有界近似 LRU 缓存(clock 淘汰), 带命中统计
+ * 读不加锁: {@link ConcurrentHashMap} + 访问标记; 超出容量时由一个线程扫描淘汰, 最近被访问过的条目多留一轮
+ * @param <K> key 类型
+ * @param <V> value 类型
+ */
+public class LRUCache<K, V> {
+    /**
+     * 最大条数
+     */
+    protected final int                         capacity;
+    protected final Map<K, Node<V>>             map;
+    /**
+     * 淘汰锁: 同时只有一个线程扫描
+     */
+    protected final ReentrantLock               lock      = new ReentrantLock();
+    /**
+     * 淘汰扫描位置
+     */
+    protected       Iterator<Map.Entry<K, Node<V>>> hand;
+    protected final LongAdder                   hits      = new LongAdder();
+    protected final LongAdder                   misses    = new LongAdder();
+    protected final LongAdder                   evictions = new LongAdder();
+
+
+    /**
+     * @param capacity 最大条数 >=1
+     */
+    public LRUCache(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Param capacity >=1");
+        this.capacity = capacity;
+        this.map = new ConcurrentHashMap<>(Math.min(capacity, 1024));
+    }
+
+
+    /**
+     * 获取缓存, 不存在时计算并缓存
+     * @param key key
+     * @param fn 计算函数, 返回 null 不缓存
+     * @return 值
+     */
+    public V computeIfAbsent(K key, Function<K, V> fn) {
+        V v = get(key);
+        if (v != null) return v;
+        v = fn.apply(key);
+        if (v != null) put(key, v);
+        return v;
+    }
+
+
+    /**
+     * 获取缓存
+     * @param key key
+     * @return 值, null: 不存在
+     */
+    public V get(K key) {
+        Node<V> n = map.get(key);
+        if (n == null) { misses.increment(); return null; }
+        hits.increment();
+        if (!n.referenced) n.referenced = true;
+        return n.value;
+    }
+
+
+    /**
+     * 设置缓存
+     * @param key key
+     * @param value 值
+     */
+    public void put(K key, V value) {
+        map.put(key, new Node<>(value));
+        if (map.size() > capacity) evict();
+    }
+
+
+    /**
+     * 淘汰到容量以内: 扫描到有访问标记的清除标记跳过, 否则删除
+     */
+    protected void evict() {
+        if (!lock.tryLock()) return; // 别的线程正在淘汰
+        try {
+            // 扫描上限: 并发访问不断重置标记时也能结束
+            for (int scanned = 0, limit = capacity * 2 + 16; map.size() > capacity; scanned++) {
+                if (hand == null || !hand.hasNext()) hand = map.entrySet().iterator();
+                if (!hand.hasNext()) break;
+                Map.Entry<K, Node<V>> e = hand.next();
+                Node<V> n = e.getValue();
+                if (n.referenced && scanned < limit) n.referenced = false;
+                else if (map.remove(e.getKey(), n)) evictions.increment();
+            }
+        } finally { lock.unlock(); }
+    }
+
+
+    /**
+     * 删除缓存
+     * @param key key
+     * @return 被删除的值
+     */
+    public V remove(K key) {
+        Node<V> n = map.remove(key);
+        return n == null ? null : n.value;
+    }
+
+
+    /**
+     * 清空
+     */
+    public void clear() { map.clear(); }
+
+
+    public int size() { return map.size(); }
+
+    public int getCapacity() { return capacity; }
+
+    public long getHits() { return hits.sum(); }
+
+    public long getMisses() { return misses.sum(); }
+
+    public long getEvictions() { return evictions.sum(); }
+
+    @Override
+    public String toString() {
+        return "LRUCache@" + Integer.toHexString(hashCode()) + "{size=" + size() + ", capacity=" + capacity + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + '}';
+    }
+
+
+    /**
+     * 缓存值及访问标记
+     */
+    protected static class Node<V> {
+        final V          value;
+        volatile boolean referenced;
+
+        Node(V value) { this.value = value; }
+    }
+}
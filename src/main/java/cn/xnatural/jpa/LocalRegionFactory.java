@@ -0,0 +1,296 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.boot.spi.SessionFactoryOptions;
+import org.hibernate.cache.cfg.spi.DomainDataRegionBuildingContext;
+import org.hibernate.cache.cfg.spi.DomainDataRegionConfig;
+import org.hibernate.cache.spi.entry.CacheEntry;
+import org.hibernate.cache.spi.entry.CollectionCacheEntry;
+import org.hibernate.cache.spi.support.AbstractReadWriteAccess;
+import org.hibernate.cache.spi.support.DomainDataStorageAccess;
+import org.hibernate.cache.spi.support.RegionFactoryTemplate;
+import org.hibernate.cache.spi.support.StorageAccess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 进程内 hibernate 二级缓存, 不依赖外部缓存组件
+ * 每个缓存区域(实体/查询)一个有界 LRU 存储: 条数限制, 近似字节数限制, 过期时间
+ * <p>
+ * 配置(Repo 属性):
+ * cache.local: true 启用
+ * cache.local.maxEntries: 每个区域最多条数, 默认 10000
+ * cache.local.maxBytes: 每个区域最多(估算)字节数, 默认 32MB. 0: 不限制
+ * cache.local.ttl: 过期时间(毫秒), 默认 10分钟. 0: 不过期
+ */
+public class LocalRegionFactory extends RegionFactoryTemplate {
+    /**
+     * 区域名 -> 存储
+     */
+    protected final Map<String, Storage> storages = new ConcurrentHashMap<>();
+    protected       int                  maxEntries;
+    protected       long                 maxBytes;
+    protected       long                 ttl;
+
+
+    @Override
+    protected void prepareForUse(SessionFactoryOptions settings, Map configValues) {
+        maxEntries = Integer.parseInt(Objects.toString(configValues.get("cache.local.maxEntries"), "10000"));
+        maxBytes = Long.parseLong(Objects.toString(configValues.get("cache.local.maxBytes"), String.valueOf(32 * 1024 * 1024)));
+        ttl = Long.parseLong(Objects.toString(configValues.get("cache.local.ttl"), String.valueOf(10 * 60 * 1000)));
+    }
+
+
+    @Override
+    protected void releaseFromUse() {
+        storages.values().forEach(Storage::release);
+        storages.clear();
+    }
+
+
+    @Override
+    protected DomainDataStorageAccess createDomainDataStorageAccess(DomainDataRegionConfig regionConfig, DomainDataRegionBuildingContext buildingContext) {
+        return storages.computeIfAbsent(regionConfig.getRegionName(), name -> new Storage(name, maxEntries, maxBytes, ttl));
+    }
+
+
+    @Override
+    protected StorageAccess createQueryResultsRegionStorageAccess(String regionName, SessionFactoryImplementor sessionFactory) {
+        return storages.computeIfAbsent(regionName, name -> new Storage(name, maxEntries, maxBytes, ttl));
+    }
+
+
+    /**
+     * 表更新时间戳不能淘汰, 否则查询缓存会读到过期数据
+     */
+    @Override
+    protected StorageAccess createTimestampsRegionStorageAccess(String regionName, SessionFactoryImplementor sessionFactory) {
+        return storages.computeIfAbsent(regionName, name -> new Storage(name, Integer.MAX_VALUE, 0, 0));
+    }
+
+
+    /**
+     * 所有缓存区域的存储
+     * @return 区域名 -> 存储
+     */
+    public Map<String, Storage> getStorages() { return Collections.unmodifiableMap(storages); }
+
+
+    /**
+     * 一个缓存区域的存储: LRU 淘汰
+     */
+    public static class Storage implements DomainDataStorageAccess {
+        protected final String                   name;
+        protected final int                      maxEntries;
+        protected final long                     maxBytes;
+        protected final long                     ttl;
+        protected final LinkedHashMap<Object, Item> map = new LinkedHashMap<>(64, 0.75f, true);
+        protected final ReentrantLock            lock = new ReentrantLock();
+        protected       long                     bytes;
+        protected final AtomicLong               hits      = new AtomicLong();
+        protected final AtomicLong               misses    = new AtomicLong();
+        protected final AtomicLong               evictions = new AtomicLong();
+
+        public Storage(String name, int maxEntries, long maxBytes, long ttl) {
+            this.name = name;
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.ttl = ttl;
+        }
+
+
+        @Override
+        public Object getFromCache(Object key, SharedSessionContractImplementor session) {
+            Object v = null;
+            lock.lock();
+            try {
+                Item item = map.get(key);
+                if (item != null) {
+                    if (item.expired()) remove(key);
+                    else v = item.value;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (v == null) misses.incrementAndGet();
+            else hits.incrementAndGet();
+            return v;
+        }
+
+
+        @Override
+        public void putIntoCache(Object key, Object value, SharedSessionContractImplementor session) {
+            // 没有字节数上限时不用估算
+            Item item = new Item(value, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE, maxBytes > 0 ? 64 + sizeOf(value) : 0);
+            lock.lock();
+            try {
+                Item old = map.put(key, item);
+                if (old != null) bytes -= old.bytes;
+                bytes += item.bytes;
+                // 淘汰最久没访问的
+                Iterator<Item> it = map.values().iterator();
+                while (it.hasNext() && (map.size() > maxEntries || (maxBytes > 0 && bytes > maxBytes))) {
+                    Item eldest = it.next();
+                    if (eldest == item) break;
+                    it.remove();
+                    bytes -= eldest.bytes;
+                    evictions.incrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        @Override
+        public void removeFromCache(Object key, SharedSessionContractImplementor session) { evictData(key); }
+
+
+        @Override
+        public void clearCache(SharedSessionContractImplementor session) { evictData(); }
+
+
+        @Override
+        public boolean contains(Object key) {
+            lock.lock();
+            try {
+                Item item = map.get(key);
+                return item != null && !item.expired();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        @Override
+        public void evictData() {
+            lock.lock();
+            try {
+                map.clear(); bytes = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        @Override
+        public void evictData(Object key) {
+            lock.lock();
+            try { remove(key); } finally { lock.unlock(); }
+        }
+
+
+        @Override
+        public void release() { evictData(); }
+
+
+        protected void remove(Object key) {
+            Item old = map.remove(key);
+            if (old != null) bytes -= old.bytes;
+        }
+
+
+        public String getName() { return name; }
+
+        public int getSize() {
+            lock.lock();
+            try { return map.size(); } finally { lock.unlock(); }
+        }
+
+        /**
+         * 估算的字节数
+         */
+        public long getBytes() {
+            lock.lock();
+            try { return bytes; } finally { lock.unlock(); }
+        }
+
+        public long getHits() { return hits.get(); }
+
+        public long getMisses() { return misses.get(); }
+
+        public long getEvictions() { return evictions.get(); }
+
+        @Override
+        public String toString() {
+            return "Storage@" + Integer.toHexString(hashCode()) + "{name=" + name + ", size=" + getSize() + ", bytes=" + getBytes() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + '}';
+        }
+    }
+
+
+    /**
+     * 缓存项
+     */
+    protected static class Item {
+        final Object value;
+        final long   expireAt;
+        final long   bytes;
+
+        Item(Object value, long expireAt, long bytes) {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.bytes = bytes;
+        }
+
+        boolean expired() { return expireAt != Long.MAX_VALUE && System.currentTimeMillis() > expireAt; }
+    }
+
+
+    /**
+     * 估算缓存值占用的字节数. 不反射遍历对象图: 实体只看拆解状态 {@link CacheEntry#getDisassembledState()}, 列表只算到行(Map/数组)里的值
+     * @param o 缓存值
+     */
+    protected static long sizeOf(Object o) {
+        if (o instanceof AbstractReadWriteAccess.Item) o = ((AbstractReadWriteAccess.Item) o).getValue(); // read-write 策略的包装对象
+        if (o instanceof CollectionCacheEntry) o = ((CollectionCacheEntry) o).getState();
+        if (o instanceof CacheEntry) {
+            Serializable[] state = ((CacheEntry) o).getDisassembledState();
+            long size = 48 + 8L * state.length;
+            for (Serializable v : state) size += sizeOfValue(v);
+            return size;
+        }
+        if (o instanceof Collection) {
+            long size = 32 + 8L * ((Collection<?>) o).size();
+            for (Object row : (Collection<?>) o) size += sizeOfRow(row);
+            return size;
+        }
+        return sizeOfRow(o);
+    }
+
+
+    /**
+     * 估算一行(Map/数组)占用的字节数
+     */
+    protected static long sizeOfRow(Object row) {
+        if (row instanceof Object[]) {
+            long size = 16 + 8L * ((Object[]) row).length;
+            for (Object v : (Object[]) row) size += sizeOfValue(v);
+            return size;
+        }
+        if (row instanceof Map) {
+            long size = 48;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) row).entrySet()) size += 32 + sizeOfValue(e.getKey()) + sizeOfValue(e.getValue());
+            return size;
+        }
+        return sizeOfValue(row);
+    }
+
+
+    /**
+     * 估算单个值占用的字节数: 不往下遍历
+     */
+    protected static long sizeOfValue(Object v) {
+        if (v == null) return 0;
+        if (v instanceof String) return 40 + 2L * ((String) v).length();
+        if (v instanceof byte[]) return 16 + ((byte[]) v).length;
+        if (v instanceof char[]) return 16 + 2L * ((char[]) v).length;
+        if (v instanceof Object[]) return 16 + 24L * ((Object[]) v).length;
+        if (v instanceof Collection) return 32 + 24L * ((Collection<?>) v).size();
+        return 16;
+    }
+}
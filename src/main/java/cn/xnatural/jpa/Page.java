@@ -19,13 +19,17 @@ public class Page<E> {
      */
     private Integer       pageSize;
     /**
-     * 总条数
+     * 总条数. null: 未统计总条数 {@link CountMode#NONE}
      */
     private Long          totalRow;
     /**
      * 总页数
      */
     private Integer       totalPage;
+    /**
+     * 是否有下一页. 未统计总条数时由多查的一条数据判断
+     */
+    private Boolean       hasNext;
     /**
      * 当前页数据
      */
@@ -46,7 +50,7 @@ public class Page<E> {
      * @return Page 新分页对象
      */
     public static <T, E> Page<T> of(Page<E> p1, Function<E, T> fn) {
-        return new Page<T>().setPage(p1.page).setPageSize(p1.pageSize).setTotalRow(p1.totalRow).setList(p1.list.stream().map(e -> fn.apply(e)).collect(Collectors.toList()));
+        return new Page<T>().setPage(p1.page).setPageSize(p1.pageSize).setTotalRow(p1.totalRow).setHasNext(p1.hasNext).setList(p1.list.stream().map(e -> fn.apply(e)).collect(Collectors.toList()));
     }
 
 
@@ -57,7 +61,7 @@ public class Page<E> {
      * @return Page 转换后的Page
      */
     public <T> Page<T> to(Function<E, T> fn) {
-        return new Page<T>().setPage(page).setPageSize(pageSize).setTotalRow(totalRow).setList(list.stream().map(e -> fn.apply(e)).collect(Collectors.toList()));
+        return new Page<T>().setPage(page).setPageSize(pageSize).setTotalRow(totalRow).setHasNext(hasNext).setList(list.stream().map(e -> fn.apply(e)).collect(Collectors.toList()));
     }
 
 
@@ -74,6 +78,21 @@ public class Page<E> {
     }
 
 
+    /**
+     * 是否有下一页
+     * @return null: 未知
+     */
+    public Boolean getHasNext() {
+        if (hasNext != null) return hasNext;
+        if (totalPage != null && page != null) return page < totalPage;
+        return null;
+    }
+
+    public Page<E> setHasNext(Boolean hasNext) {
+        this.hasNext = hasNext;
+        return this;
+    }
+
     public Integer getPageSize() { return pageSize; }
 
     public Page<E> setPageSize(Integer pageSize) {
@@ -106,6 +125,6 @@ public class Page<E> {
 
     @Override
     public String toString() {
-        return "Page@" + Integer.toHexString(hashCode()) + "{page=" + page + ", pageSize=" + pageSize + ", totalRow=" + totalRow + ", totalPage=" + totalPage + ", list=" + list + '}';
+        return "Page@" + Integer.toHexString(hashCode()) + "{page=" + page + ", pageSize=" + pageSize + ", totalRow=" + totalRow + ", totalPage=" + totalPage + ", hasNext=" + getHasNext() + ", list=" + list + '}';
     }
 }
@@ -0,0 +1,256 @@
+package cn.xnatural.jpa;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * sql 查询结果缓存: 有界 LRU, 过期时间, 按表失效
+ * 每个缓存项记录查询涉及的表, 表被写时(同一个 {@link Repo})失效.
+ * 查询期间有写: 结果不缓存
+ */
+public class QueryCache {
+    /**
+     * 表名: 可带库名和引号
+     */
+    protected static final String                  NAME         = "[`\"\\[]?[\\w$]+[`\"\\]]?(?:\\.[`\"\\[]?[\\w$]+[`\"\\]]?)*";
+    /**
+     * 表别名: 不能是关键字
+     */
+    protected static final String                  ALIAS        = "(?:\\s+(?:as\\s+)?(?!(?:join|inner|left|right|full|cross|natural|outer|on|using|where|group|order|having|limit|offset|union|for|window)\\b)\\w+)?";
+    protected static final Pattern                 READ_TABLES  = Pattern.compile("\\b(?:from|join)\\s+(" + NAME + ALIAS + "(?:\\s*,\\s*" + NAME + ALIAS + ")*)", Pattern.CASE_INSENSITIVE);
+    protected static final Pattern                 WRITE_TABLE  = Pattern.compile("^\\s*(?:insert\\s+(?:ignore\\s+)?into|replace\\s+into|merge\\s+into|update|delete\\s+from|truncate\\s+table|truncate)\\s+(" + NAME + ")", Pattern.CASE_INSENSITIVE);
+    protected static final Object                  NULL         = new Object();
+    protected final        int                     maxEntries;
+    protected final        long                    maxBytes;
+    /**
+     * 默认过期时间(毫秒)
+     */
+    protected final        long                    ttl;
+    protected final        LinkedHashMap<String, Entry> map     = new LinkedHashMap<>(64, 0.75f, true);
+    protected final        ReentrantLock           lock         = new ReentrantLock();
+    /**
+     * 表 -> 缓存key
+     */
+    protected final        Map<String, Set<String>> tableKeys   = new HashMap<>();
+    /**
+     * 表 -> 版本: 表被写时加1
+     */
+    protected final        Map<String, AtomicLong> versions     = new ConcurrentHashMap<>();
+    /**
+     * 全部失效的版本
+     */
+    protected final        AtomicLong              epoch        = new AtomicLong();
+    protected              long                    bytes;
+    protected final        AtomicLong              hits         = new AtomicLong();
+    protected final        AtomicLong              misses       = new AtomicLong();
+    protected final        AtomicLong              evictions    = new AtomicLong();
+    protected final        AtomicLong              invalidations = new AtomicLong();
+
+
+    /**
+     * @param maxEntries 最多条数
+     * @param maxBytes 最多(估算)字节数. 0: 不限制
+     * @param ttl 默认过期时间(毫秒)
+     */
+    public QueryCache(int maxEntries, long maxBytes, long ttl) {
+        if (maxEntries < 1) throw new IllegalArgumentException("Param maxEntries >=1");
+        if (ttl < 1) throw new IllegalArgumentException("Param ttl >=1");
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+    }
+
+
+    /**
+     * 获取缓存, 不存在时查询并缓存
+     * @param key 缓存key
+     * @param tables 查询涉及的表
+     * @param ttl 过期时间(毫秒). null: 默认
+     * @param loader 查询函数
+     * @return 结果
+     */
+    public <T> T get(String key, Set<String> tables, Long ttl, Supplier<T> loader) {
+        lock.lock();
+        try {
+            Entry e = map.get(key);
+            if (e != null) {
+                if (e.expireAt >= System.currentTimeMillis()) {
+                    hits.incrementAndGet();
+                    return e.value == NULL ? null : (T) e.value;
+                }
+                remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+        misses.incrementAndGet();
+        long version = version(tables);
+        T v = loader.get();
+        Entry e = new Entry(key, v == null ? NULL : v, tables, System.currentTimeMillis() + (ttl == null ? this.ttl : ttl),
+                maxBytes > 0 ? 64 + 2L * key.length() + LocalRegionFactory.sizeOf(v) : 0); // 没有字节数上限时不用估算
+        lock.lock();
+        try {
+            if (version != version(tables)) return v; // 查询期间表被写
+            remove(key);
+            map.put(key, e);
+            bytes += e.bytes;
+            for (String t : tables) tableKeys.computeIfAbsent(t, k -> new HashSet<>()).add(key);
+            // 淘汰最久没访问的
+            Iterator<Entry> it = map.values().iterator();
+            while (it.hasNext() && (map.size() > maxEntries || (maxBytes > 0 && bytes > maxBytes))) {
+                Entry eldest = it.next();
+                if (eldest == e) break;
+                it.remove();
+                unindex(eldest);
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return v;
+    }
+
+
+    /**
+     * 表被写: 使相关缓存失效
+     * @param tables 表名. null: 全部失效
+     */
+    public void invalidate(Collection<String> tables) {
+        invalidations.incrementAndGet();
+        lock.lock();
+        try {
+            if (tables == null) {
+                epoch.incrementAndGet();
+                map.clear(); tableKeys.clear(); bytes = 0;
+                return;
+            }
+            for (String t : tables) {
+                String table = normalize(t);
+                versions.computeIfAbsent(table, k -> new AtomicLong()).incrementAndGet();
+                Set<String> keys = tableKeys.remove(table);
+                if (keys != null) keys.forEach(this::remove);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * 清空
+     */
+    public void clear() { invalidate(null); }
+
+
+    protected long version(Set<String> tables) {
+        long v = epoch.get();
+        for (String t : tables) {
+            AtomicLong tv = versions.get(t);
+            if (tv != null) v += tv.get();
+        }
+        return v;
+    }
+
+
+    protected void remove(String key) {
+        Entry e = map.remove(key);
+        if (e != null) unindex(e);
+    }
+
+
+    protected void unindex(Entry e) {
+        bytes -= e.bytes;
+        for (String t : e.tables) {
+            Set<String> keys = tableKeys.get(t);
+            if (keys != null) {
+                keys.remove(e.key);
+                if (keys.isEmpty()) tableKeys.remove(t);
+            }
+        }
+    }
+
+
+    /**
+     * 解析查询语句涉及的表: from, join 之后的表名
+     * @param sql 查询语句
+     * @return 表名(小写, 去掉库名和引号)
+     */
+    public static Set<String> readTables(String sql) {
+        Set<String> tables = new HashSet<>();
+        Matcher m = READ_TABLES.matcher(sql);
+        while (m.find()) {
+            for (String part : m.group(1).split(",")) {
+                String name = part.trim().split("\\s+")[0];
+                if (!name.isEmpty()) tables.add(normalize(name));
+            }
+        }
+        return tables;
+    }
+
+
+    /**
+     * 解析写语句的表: insert into, update, delete from, replace into, merge into, truncate
+     * @param sql 写语句
+     * @return 表名(小写, 去掉库名和引号). null: 不能解析
+     */
+    public static String writeTable(String sql) {
+        Matcher m = WRITE_TABLE.matcher(sql);
+        return m.find() ? normalize(m.group(1)) : null;
+    }
+
+
+    protected static String normalize(String table) {
+        String t = table.replace("`", "").replace("\"", "").replace("[", "").replace("]", "").toLowerCase();
+        int i = t.lastIndexOf('.');
+        return i >= 0 ? t.substring(i + 1) : t;
+    }
+
+
+    public int getSize() {
+        lock.lock();
+        try { return map.size(); } finally { lock.unlock(); }
+    }
+
+    public long getBytes() {
+        lock.lock();
+        try { return bytes; } finally { lock.unlock(); }
+    }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    public long getEvictions() { return evictions.get(); }
+
+    public long getInvalidations() { return invalidations.get(); }
+
+    @Override
+    public String toString() {
+        return "QueryCache@" + Integer.toHexString(hashCode()) + "{size=" + getSize() + ", bytes=" + getBytes() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", invalidations=" + invalidations + '}';
+    }
+
+
+    /**
+     * 缓存项
+     */
+    protected static class Entry {
+        final String      key;
+        final Object      value;
+        final Set<String> tables;
+        final long        expireAt;
+        final long        bytes;
+
+        Entry(String key, Object value, Set<String> tables, long expireAt, long bytes) {
+            this.key = key;
+            this.value = value;
+            this.tables = tables;
+            this.expireAt = expireAt;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -1,14 +1,25 @@
 package cn.xnatural.jpa;
 
+import org.hibernate.FlushMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 import org.hibernate.Transaction;
 import org.hibernate.boot.MetadataSources;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
 import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.LoadEvent;
+import org.hibernate.internal.AbstractSharedSessionContract;
 import org.hibernate.internal.SessionFactoryImpl;
+import org.hibernate.loader.entity.CacheEntityLoaderHelper;
 import org.hibernate.metamodel.spi.MetamodelImplementor;
 import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
 import org.hibernate.query.Query;
 import org.hibernate.query.QueryParameter;
 import org.hibernate.query.internal.NativeQueryImpl;
@@ -16,25 +27,31 @@ import org.hibernate.service.UnknownUnwrapTypeException;
 import org.hibernate.transform.BasicTransformerAdapter;
 import org.hibernate.transform.ResultTransformer;
 import org.hibernate.transform.Transformers;
+import org.hibernate.type.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Order;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 import javax.sql.DataSource;
+import javax.transaction.Synchronization;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.io.Serializable;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * 对应一个数据源
@@ -57,6 +74,54 @@ public class Repo implements AutoCloseable {
      * 关联哪些实体
      */
     protected final List<Class<? extends IEntity>>         entities = new LinkedList<>();
+    /**
+     * 号段id分配器 {@link #segmentId(String)}
+     */
+    protected       SegmentIdAllocator  segmentIds;
+    /**
+     * 从库属性集 {@link #replica(Map)}
+     */
+    protected final List<Map<String, Object>>              replicaAttrs = new LinkedList<>();
+    /**
+     * 当前线程最近一次写事务提交的时间. 读写分离时, 写之后的一段时间内读主库
+     */
+    protected final ThreadLocal<Long>   lastWrite = new ThreadLocal<>();
+    /**
+     * SnowFlake workerId 租约. 属性 snowFlake.lease=true 时启用
+     */
+    protected       WorkerIdLease       workerIdLease;
+    /**
+     * sql 查询结果缓存 {@link #cache()}
+     */
+    protected       QueryCache          queryCache;
+    /**
+     * 分页总条数缓存 {@link CountMode#CACHED}. 属性 countCacheTtl(毫秒, 默认60000), countCache.maxEntries(默认1000)
+     */
+    protected       QueryCache          countCache;
+    /**
+     * 执行统计 {@link #getMetrics()}. 属性 metrics=true 时才统计
+     */
+    protected       RepoMetrics         metrics;
+    /**
+     * 当前线程正在执行的被统计方法层数: 内部调用的 trans 不单独统计
+     */
+    protected final ThreadLocal<int[]>  metricDepth = ThreadLocal.withInitial(() -> new int[1]);
+    /**
+     * 只读事务 {@link #readTrans(Function)} 是否设置 {@link Connection#setReadOnly(boolean)}. 属性 readOnlyConnection, 默认true
+     */
+    protected       boolean             readOnlyConnection = true;
+    /**
+     * 等待工作单元锁的最长毫秒数 {@link UnitOfWork#call(Supplier)}: 超时报错(而不是死锁). 属性 uow.lockTimeout, 默认30000
+     */
+    protected       long                uowLockTimeout = 30_000;
+    /**
+     * sql 结果转 bean 时是否宽松匹配列名(忽略大小写和下划线) {@link RowMapper}. 属性 rowMapper.looseMatch, 默认false
+     */
+    protected       boolean             rowMapperLoose;
+    /**
+     * 当前线程在此 Repo 中被设为只读的连接: 归还连接池前恢复
+     */
+    protected final ThreadLocal<Connection> readOnlyConn = new ThreadLocal<>();
 
 
     public Repo() { this((Map<String, Object>) null); }
@@ -108,19 +173,109 @@ public class Repo implements AutoCloseable {
      */
     public Repo init() {
         if (sf != null) throw new RuntimeException("Already inited");
+        try {
+            doInit();
+        } catch (RuntimeException | Error ex) { // 初始化失败: 释放已创建的资源(数据源, workerId 租约及续约线程 ...)
+            close();
+            throw ex;
+        }
+        return this;
+    }
 
+
+    protected void doInit() {
         //1. 数据源
         if (datasource != null) throw new RuntimeException("DataSource already exist");
         datasource = createDataSource(attrs);
         if (datasource == null) throw new RuntimeException("Not found DataSource implement class");
+        if (!replicaAttrs.isEmpty()) { // 读写分离
+            List<DataSource> replicas = new ArrayList<>(replicaAttrs.size());
+            for (Map<String, Object> replicaAttr : replicaAttrs) {
+                Map<String, Object> dsAttr = new HashMap<>(attrs); // 继承主库的连接池属性
+                dsAttr.putAll(replicaAttr);
+                replicas.add(createDataSource(dsAttr));
+            }
+            datasource = new RoutingDataSource(datasource, replicas,
+                    "leastActive".equalsIgnoreCase(Objects.toString(attrs.get("readBalance"), "")) ? RoutingDataSource.Balance.LEAST_ACTIVE : RoutingDataSource.Balance.ROUND_ROBIN
+            );
+        }
 
         //2. 初始化Hibernate. 可配置的属性名 AvailableSettings
         Map<String, Object> props = new HashMap<>(attrs);
         // props.putIfAbsent("hibernate.hbm2ddl.auto", "none");
         props.putIfAbsent("hibernate.physical_naming_strategy", PhysicalNaming.class);
         props.putIfAbsent("hibernate.implicit_naming_strategy", ImplicitNaming.class);
-        sf = createSessionFactory(datasource, props, entities);
-        return this;
+        // 批量插入/更新时按实体排序, 使jdbc batch 生效
+        props.putIfAbsent("hibernate.order_inserts", "true");
+        props.putIfAbsent("hibernate.order_updates", "true");
+        props.putIfAbsent("hibernate.jdbc.batch_versioned_data", "true");
+        // 进程内二级缓存: 实体加 @Cacheable 启用
+        if (Boolean.parseBoolean(Objects.toString(attrs.get("cache.local"), "false"))) {
+            props.putIfAbsent("hibernate.cache.use_second_level_cache", "true");
+            props.putIfAbsent("hibernate.cache.use_query_cache", "true");
+            props.putIfAbsent("hibernate.cache.region.factory_class", LocalRegionFactory.class.getName());
+            props.putIfAbsent("hibernate.cache.default_cache_concurrency_strategy", "read-write");
+            props.putIfAbsent("javax.persistence.sharedCache.mode", "ENABLE_SELECTIVE");
+        }
+        // 号段id分配器: 第一次取id时才访问数据库. 给 SegmentIdGenerator 用
+        Object segmentTable = attrs.get("segmentId.table");
+        Object segmentStep = attrs.get("segmentId.step");
+        segmentIds = new SegmentIdAllocator(
+                datasource,
+                segmentTable == null || segmentTable.toString().isEmpty() ? "id_segment" : segmentTable.toString(),
+                segmentStep == null || segmentStep.toString().isEmpty() ? 1000 : Integer.parseInt(segmentStep.toString())
+        );
+        props.put(SegmentIdGenerator.ALLOCATOR, segmentIds);
+        // 从租约表租用唯一的 SnowFlake workerId
+        if (Boolean.parseBoolean(Objects.toString(attrs.get("snowFlake.lease"), "false"))) {
+            for (String key : Arrays.asList("snowFlake.datacenterId", "snowFlake.machineId")) {
+                Object v = attrs.get(key);
+                if (v != null && !v.toString().isEmpty()) throw new IllegalArgumentException("snowFlake.lease can't be used with " + key);
+            }
+            Object leaseTable = attrs.get("snowFlake.leaseTable");
+            Object leaseTtl = attrs.get("snowFlake.leaseTtl");
+            workerIdLease = new WorkerIdLease(
+                    datasource,
+                    leaseTable == null || leaseTable.toString().isEmpty() ? "worker_lease" : leaseTable.toString(),
+                    leaseTtl == null || leaseTtl.toString().isEmpty() ? 60 * 1000L : Long.parseLong(leaseTtl.toString())
+            );
+            workerIdLease.acquire();
+            props.put("snowFlake.workerIdLease", workerIdLease);
+        }
+        // 执行统计: 记录实体方法执行的sql
+        if (Boolean.parseBoolean(Objects.toString(attrs.get("metrics"), "false"))) {
+            Object maxStatements = attrs.get("metrics.maxStatements");
+            metrics = new RepoMetrics(maxStatements == null || maxStatements.toString().isEmpty() ? 500 : Integer.parseInt(maxStatements.toString()));
+            props.putIfAbsent("hibernate.session_factory.statement_inspector", new RepoMetrics.SqlCapture());
+        }
+        readOnlyConnection = Boolean.parseBoolean(Objects.toString(attrs.get("readOnlyConnection"), "true"));
+        rowMapperLoose = Boolean.parseBoolean(Objects.toString(attrs.get("rowMapper.looseMatch"), "false"));
+        Object lockTimeout = attrs.get("uow.lockTimeout");
+        if (lockTimeout != null && !lockTimeout.toString().isEmpty()) uowLockTimeout = Long.parseLong(lockTimeout.toString());
+        sf = createSessionFactory(datasource, props, entities, readOnlyConn);
+
+        //3. 参数绑定计划缓存
+        Object planCacheSize = attrs.get("paramPlanCacheSize");
+        paramPlans = new LRUCache<>(planCacheSize == null || planCacheSize.toString().isEmpty() ? 512 : Integer.parseInt(planCacheSize.toString()));
+
+        //4. sql 查询结果缓存
+        Object qcEntries = attrs.get("queryCache.maxEntries");
+        Object qcBytes = attrs.get("queryCache.maxBytes");
+        Object qcTtl = attrs.get("queryCache.ttl");
+        queryCache = new QueryCache(
+                qcEntries == null || qcEntries.toString().isEmpty() ? 1000 : Integer.parseInt(qcEntries.toString()),
+                qcBytes == null || qcBytes.toString().isEmpty() ? 16 * 1024 * 1024L : Long.parseLong(qcBytes.toString()),
+                qcTtl == null || qcTtl.toString().isEmpty() ? 60 * 1000L : Long.parseLong(qcTtl.toString())
+        );
+
+        //5. 分页总条数缓存
+        Object ccEntries = attrs.get("countCache.maxEntries");
+        Object ccTtl = attrs.get("countCacheTtl");
+        countCache = new QueryCache(
+                ccEntries == null || ccEntries.toString().isEmpty() ? 1000 : Integer.parseInt(ccEntries.toString()),
+                0,
+                ccTtl == null || ccTtl.toString().isEmpty() ? 60 * 1000L : Long.parseLong(ccTtl.toString())
+        );
     }
 
 
@@ -130,9 +285,13 @@ public class Repo implements AutoCloseable {
     @Override
     public void close() {
         try {
-            sf.close(); sf = null;
-            datasource.getClass().getMethod("close").invoke(datasource);
-            datasource = null;
+            if (segmentIds != null) { segmentIds.close(); segmentIds = null; }
+            if (workerIdLease != null) { workerIdLease.close(); workerIdLease = null; }
+            if (sf != null) { sf.close(); sf = null; }
+            if (datasource != null) {
+                datasource.getClass().getMethod("close").invoke(datasource);
+                datasource = null;
+            }
         } catch (Exception e) {}
     }
 
@@ -154,6 +313,32 @@ public class Repo implements AutoCloseable {
     public Object getAttr(String key) { return attrs.get(key); }
 
 
+    /**
+     * 添加从库: 读操作 {@link #read(Function)} 路由到从库
+     * @param jdbcUrl 从库 jdbc url. 其它连接池属性同主库
+     * @return 当前 {@link Repo}
+     */
+    public Repo replica(String jdbcUrl) {
+        if (jdbcUrl == null || jdbcUrl.isEmpty()) throw new IllegalArgumentException("Param jdbcUrl required");
+        Map<String, Object> replicaAttr = new HashMap<>();
+        replicaAttr.put("url", jdbcUrl); replicaAttr.put("jdbcUrl", jdbcUrl);
+        return replica(replicaAttr);
+    }
+
+
+    /**
+     * 添加从库: 读操作 {@link #read(Function)} 路由到从库
+     * @param replicaAttr 从库连接池属性. 没有的属性同主库
+     * @return 当前 {@link Repo}
+     */
+    public Repo replica(Map<String, Object> replicaAttr) {
+        if (sf != null) throw new RuntimeException("Already inited");
+        if (replicaAttr == null || replicaAttr.isEmpty()) throw new IllegalArgumentException("Param replicaAttr required");
+        replicaAttrs.add(replicaAttr);
+        return this;
+    }
+
+
     /**
      * 添加被管理的实体类
      * @param clzs 实体类
@@ -167,8 +352,10 @@ public class Repo implements AutoCloseable {
     }
 
 
-    // 事务的线程标记
-    protected static final ThreadLocal<Boolean> txFlag = ThreadLocal.withInitial(() -> false);
+    // 事务的线程标记(每个 Repo 单独)
+    protected final ThreadLocal<Boolean> txFlag = ThreadLocal.withInitial(() -> false);
+    // 当前线程绑定的工作单元 {@link #session(Function)}
+    protected final ThreadLocal<UnitOfWork> unitOfWork = new ThreadLocal<>();
     /**
      * 事务执行方法
      * @param fn 数据库操作函数
@@ -177,15 +364,46 @@ public class Repo implements AutoCloseable {
      */
     public <T> T trans(Function<Session, T> fn, Runnable okFn, Consumer<Exception> failFn) {
         if (sf == null) throw new RuntimeException("Please init first");
-        Session s = sf.getCurrentSession();
+        // 只统计直接调用的最外层事务
+        if (metrics == null || txFlag.get() || metricDepth.get()[0] > 0) return doTrans(fn, okFn, failFn);
+        boolean[] failed = {false};
+        return transMetric("trans", failed, () -> doTrans(fn, okFn, failFn == null ? null : ex -> { failed[0] = true; failFn.accept(ex); }));
+    }
+
+
+    /**
+     * 统计最外层事务的执行
+     * @param method 方法名
+     * @param failed 是否失败. 执行抛异常时设为 true
+     * @param fn 执行函数
+     */
+    protected <T> T transMetric(String method, boolean[] failed, Supplier<T> fn) {
+        long start = System.nanoTime();
+        try {
+            return fn.get();
+        } catch (Throwable ex) {
+            failed[0] = true;
+            throw ex;
+        } finally {
+            metrics.record(method, null, System.nanoTime() - start, 0, failed[0]);
+        }
+    }
+
+
+    /**
+     * 执行事务 {@link #trans(Function, Runnable, Consumer)}
+     */
+    protected <T> T doTrans(Function<Session, T> fn, Runnable okFn, Consumer<Exception> failFn) {
         // 当前线程存在事务
-        if (txFlag.get()) return fn.apply(s);
+        if (txFlag.get()) return fn.apply(currentSession());
         else { // 当前线程没有事务,开启新事务
+            Session s = sf.getCurrentSession();
             Transaction tx = s.getTransaction();
             tx.begin(); txFlag.set(true);
             Exception ex = null;
             try {
                 T r = fn.apply(s); tx.commit(); txFlag.set(false); s.close();
+                markWrite();
                 return r;
             } catch (Exception t) {
                 tx.rollback(); txFlag.set(false); ex = t; s.close();
@@ -210,6 +428,230 @@ public class Repo implements AutoCloseable {
     public <T> T trans(Function<Session, T> fn) { return trans(fn, null, null); }
 
 
+    /**
+     * 只读事务: 不 flush, 加载的实体不保存快照(不做脏检查), 连接设为只读
+     * 当前线程已在事务中时加入外层事务(可写)
+     * 注: 在只读事务中有排队待提交的写操作(saveOrUpdate, delete 等)时回滚并抛错
+     * @param fn 数据库操作函数
+     * @param <T> 类型
+     */
+    public <T> T readTrans(Function<Session, T> fn) {
+        if (sf == null) throw new RuntimeException("Please init first");
+        // 只统计直接调用的最外层事务
+        if (metrics == null || txFlag.get() || metricDepth.get()[0] > 0) return doReadTrans(fn);
+        return transMetric("readTrans", new boolean[1], () -> doReadTrans(fn));
+    }
+
+
+    /**
+     * 执行只读事务 {@link #readTrans(Function)}
+     */
+    protected <T> T doReadTrans(Function<Session, T> fn) {
+        // 当前线程存在事务
+        if (txFlag.get()) return fn.apply(currentSession());
+        Session s = sf.getCurrentSession();
+        Transaction tx = s.getTransaction();
+        tx.begin(); txFlag.set(true);
+        boolean committed = false;
+        Connection prevReadOnly = readOnlyConn.get();
+        try {
+            s.setHibernateFlushMode(FlushMode.MANUAL);
+            s.setDefaultReadOnly(true);
+            if (readOnlyConnection) {
+                s.doWork(conn -> {
+                    try {
+                        conn.setReadOnly(true);
+                        readOnlyConn.set(conn);
+                    } catch (SQLException ex) { // 驱动不支持时忽略
+                        log.debug("Set connection readOnly error: {}", ex.getMessage());
+                    }
+                });
+            }
+            T r = fn.apply(s);
+            // 不 flush: 排队的写操作(save, delete 等)会被丢弃, 报错. 不用 isDirty(): 会遍历会话中所有实体.
+            // 立即执行的写(IDENTITY 插入, 原生 update)由只读连接拒绝(驱动支持时)
+            if (((SessionImplementor) s).getActionQueue().hasAnyQueuedActions()) throw new RuntimeException("Can't write in readTrans, use trans");
+            tx.commit(); committed = true;
+            return r;
+        } finally { // Error 时也恢复
+            try {
+                if (!committed && tx.getStatus().canRollback()) tx.rollback();
+            } finally {
+                txFlag.set(false);
+                try { s.close(); } finally {
+                    if (prevReadOnly == null) readOnlyConn.remove();
+                    else readOnlyConn.set(prevReadOnly);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 工作单元: 作用域内的所有操作共用一个 session, 一个连接, 一个事务 {@link UnitOfWork}
+     * 1. 作用域内调用的 Repo 方法(trans, byId, rows, count 等)都加入此事务, 正常结束时提交, 异常时回滚
+     * 2. 嵌套事务 {@link UnitOfWork#trans(Function)} 用 savepoint: 失败时只回滚嵌套部分
+     * 3. 已在工作单元中时直接使用当前工作单元; 已在 trans 中时使用外层事务(由外层提交)
+     * @param work 函数
+     * @param <T> 类型
+     */
+    public <T> T session(Function<UnitOfWork, T> work) {
+        if (work == null) throw new IllegalArgumentException("Param work required");
+        if (sf == null) throw new RuntimeException("Please init first");
+        UnitOfWork cur = unitOfWork.get();
+        if (cur != null) return work.apply(cur);
+        if (txFlag.get()) { // 已在 trans 中
+            UnitOfWork uow = new UnitOfWork(this, sf.getCurrentSession(), null);
+            return uow.call(() -> work.apply(uow));
+        }
+        if (metrics == null || metricDepth.get()[0] > 0) return doSession(work);
+        return transMetric("session", new boolean[1], () -> doSession(work));
+    }
+
+
+    /**
+     * 执行工作单元 {@link #session(Function)}
+     */
+    protected <T> T doSession(Function<UnitOfWork, T> work) {
+        UnitOfWork uow = begin();
+        T r;
+        try {
+            r = uow.call(() -> work.apply(uow));
+        } catch (RuntimeException ex) {
+            try {
+                uow.close();
+            } catch (RuntimeException e) {
+                ex.addSuppressed(e);
+            }
+            throw ex;
+        }
+        if (!uow.isEnded()) uow.commit();
+        return r;
+    }
+
+
+    /**
+     * 开始一个工作单元: 不绑定线程, 由调用方结束 {@link UnitOfWork#commit()}, {@link UnitOfWork#rollback()}
+     * 可跨线程使用(例如 CompletableFuture 链): {@link UnitOfWork#call(Supplier)}, {@link UnitOfWork#wrap(Function)}
+     * @return {@link UnitOfWork}
+     */
+    public UnitOfWork begin() {
+        if (sf == null) throw new RuntimeException("Please init first");
+        Session s = sf.openSession();
+        try {
+            return new UnitOfWork(this, s, s.beginTransaction());
+        } catch (RuntimeException ex) {
+            s.close();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * 写事务提交后: 读写分离时当前线程一段时间内读主库
+     */
+    protected void markWrite() {
+        if (datasource instanceof RoutingDataSource && !((RoutingDataSource) datasource).isRead()) {
+            lastWrite.set(System.currentTimeMillis());
+        }
+    }
+
+
+    /**
+     * 当前线程事务的 session: 工作单元的 session 或 {@link SessionFactory#getCurrentSession()}
+     */
+    protected Session currentSession() {
+        UnitOfWork uow = unitOfWork.get();
+        return uow == null ? sf.getCurrentSession() : uow.getSession();
+    }
+
+
+    /**
+     * 当前线程是否在事务中
+     */
+    protected boolean inTrans() { return txFlag.get(); }
+
+
+    /**
+     * 统计方法的执行 {@link RepoMetrics}
+     * @param method 方法名
+     * @param sql sql/hql. null: 统计 hibernate 执行的第一条 sql
+     * @param fn 执行函数
+     */
+    protected <T> T metric(String method, String sql, Supplier<T> fn) {
+        if (metrics == null) return fn.get();
+        int[] depth = metricDepth.get();
+        String prev = sql == null ? RepoMetrics.SqlCapture.begin() : null;
+        long start = System.nanoTime();
+        T r = null;
+        boolean ok = false;
+        depth[0]++;
+        try {
+            r = fn.get(); ok = true;
+            return r;
+        } finally {
+            depth[0]--;
+            String executed = sql == null ? RepoMetrics.SqlCapture.end(prev) : sql;
+            metrics.record(method, executed, System.nanoTime() - start, ok ? RepoMetrics.rows(r) : 0, !ok);
+        }
+    }
+
+
+    /**
+     * 执行统计: 按方法, 按 sql 指纹
+     * @return {@link RepoMetrics}. null: 没有启用(属性 metrics=false)
+     */
+    public RepoMetrics getMetrics() { return metrics; }
+
+
+    /**
+     * 读操作: 配置了从库 {@link #replica(String)} 时在从库执行
+     * 以下情况在主库执行: 1. 当前线程已在事务中 2. 当前线程最近(属性 stickyPrimaryMs, 默认1000毫秒)有写事务
+     * 没有外层事务时以只读事务 {@link #readTrans(Function)} 执行
+     * @param fn 数据库操作函数
+     * @param <T> 类型
+     */
+    protected <T> T read(Function<Session, T> fn) { return onReplica(() -> readTrans(fn)); }
+
+
+    /**
+     * 在从库上执行(取连接): 规则同 {@link #read(Function)}
+     * @param fn 函数
+     * @param <T> 类型
+     */
+    protected <T> T onReplica(Supplier<T> fn) {
+        if (!(datasource instanceof RoutingDataSource) || txFlag.get()) return fn.get();
+        Long writeTime = lastWrite.get();
+        if (stickyPrimary()) { // 读主库, 不算写
+            try {
+                return fn.get();
+            } finally {
+                lastWrite.set(writeTime);
+            }
+        }
+        RoutingDataSource rds = (RoutingDataSource) datasource;
+        boolean prev = rds.setRead(true);
+        try {
+            return fn.get();
+        } finally {
+            rds.setRead(prev);
+        }
+    }
+
+
+    /**
+     * 当前线程最近是否有写事务
+     */
+    protected boolean stickyPrimary() {
+        Long t = lastWrite.get();
+        if (t == null) return false;
+        Object stickyMs = attrs.get("stickyPrimaryMs");
+        if (System.currentTimeMillis() - t < (stickyMs == null || stickyMs.toString().isEmpty() ? 1000L : Long.parseLong(stickyMs.toString()))) return true;
+        lastWrite.remove();
+        return false;
+    }
+
+
     /**
      * 根据实体类, 查表名字
      * @param eType 实体Class
@@ -265,10 +707,11 @@ public class Repo implements AutoCloseable {
      */
     public String getJdbcUrl() {
         if (sf == null) throw new RuntimeException("Please init first");
+        DataSource ds = datasource instanceof RoutingDataSource ? ((RoutingDataSource) datasource).getPrimary() : datasource;
         try {
-            for (PropertyDescriptor pd : Introspector.getBeanInfo(datasource.getClass()).getPropertyDescriptors()) {
-                if (pd.getName().equals("jdbcUrl")) return (String) pd.getReadMethod().invoke(datasource);
-                if (pd.getName().equals("url")) return (String) pd.getReadMethod().invoke(datasource);
+            for (PropertyDescriptor pd : Introspector.getBeanInfo(ds.getClass()).getPropertyDescriptors()) {
+                if (pd.getName().equals("jdbcUrl")) return (String) pd.getReadMethod().invoke(ds);
+                if (pd.getName().equals("url")) return (String) pd.getReadMethod().invoke(ds);
             }
         } catch (Exception e) {
             log.error("", e);
@@ -284,15 +727,82 @@ public class Repo implements AutoCloseable {
      */
     public <E extends IEntity> E saveOrUpdate(E entity) {
         if (entity == null) throw new IllegalArgumentException("Param entity required");
-        return trans(session -> {
+        return metric("saveOrUpdate", null, () -> trans(session -> {
             if (entity instanceof BaseEntity) {
                 Date d = new Date();
                 if (((BaseEntity) entity).getCreateTime() == null) ((BaseEntity) entity).setCreateTime(d);
                 ((BaseEntity) entity).setUpdateTime(d);
             }
             session.saveOrUpdate(entity);
+            written(session, entity.getClass());
             return entity;
-        });
+        }));
+    }
+
+
+    /**
+     * 批量保存/更新实体
+     * {@link #saveAll(Iterator, int)}
+     * @param entities 实体集
+     * @return 实体集
+     */
+    public <E extends IEntity> Collection<E> saveAll(Collection<E> entities) {
+        if (entities == null) throw new IllegalArgumentException("Param entities required");
+        saveAll(entities.iterator(), getBatchSize());
+        return entities;
+    }
+
+
+    /**
+     * 批量保存/更新实体
+     * 1. 在一个事务中执行, 并开启jdbc batch
+     * 2. 每 batchSize 个实体 flush/clear 一次 Session, 避免一级缓存无限增长(在外层事务中调用时, 之前加载的实体也会被 clear)
+     * NOTE: 主键为 {@link javax.persistence.GenerationType#IDENTITY} 的实体插入时hibernate无法batch
+     * @param it 实体迭代器
+     * @param batchSize 每批大小 >=1
+     * @return 保存/更新的条数
+     */
+    public <E extends IEntity> int saveAll(Iterator<E> it, int batchSize) {
+        if (it == null) throw new IllegalArgumentException("Param it required");
+        if (batchSize < 1) throw new IllegalArgumentException("Param batchSize >=1");
+        return metric("saveAll", null, () -> trans(session -> {
+            Integer originBatchSize = session.getJdbcBatchSize();
+            session.setJdbcBatchSize(batchSize);
+            Set<Class<?>> types = new HashSet<>();
+            try {
+                int count = 0;
+                Date d = new Date(); // 每批一个时间
+                while (it.hasNext()) {
+                    E entity = it.next();
+                    if (entity == null) continue;
+                    if (entity instanceof BaseEntity) {
+                        if (((BaseEntity) entity).getCreateTime() == null) ((BaseEntity) entity).setCreateTime(d);
+                        ((BaseEntity) entity).setUpdateTime(d);
+                    }
+                    session.saveOrUpdate(entity);
+                    types.add(entity.getClass());
+                    if (++count % batchSize == 0) {
+                        session.flush(); session.clear();
+                        d = new Date();
+                    }
+                }
+                session.flush(); session.clear();
+                return count;
+            } finally {
+                session.setJdbcBatchSize(originBatchSize);
+                if (!types.isEmpty()) written(session, types.toArray(new Class[0]));
+            }
+        }));
+    }
+
+
+    /**
+     * 批量操作每批大小: 属性 hibernate.jdbc.batch_size, 默认 100
+     * @return 每批大小
+     */
+    protected int getBatchSize() {
+        Object v = attrs.get("hibernate.jdbc.batch_size");
+        return v == null || v.toString().isEmpty() ? 100 : Integer.parseInt(v.toString());
     }
 
 
@@ -304,7 +814,56 @@ public class Repo implements AutoCloseable {
      */
     public <E extends IEntity> E byId(Class<E> eType, Serializable id) {
         if (eType == null) throw new IllegalArgumentException("Param eType required");
-        return trans(session -> session.get(eType, id));
+        return metric("byId", null, () -> {
+            // 只从二级缓存取(不开启事务, 不取连接), 没命中再正常读取
+            if (!txFlag.get() && id != null) {
+                EntityPersister persister = ((MetamodelImplementor) sf.getMetamodel()).locateEntityPersister(eType);
+                if (cacheOnly(persister)) {
+                    try (Session session = sf.openSession()) {
+                        Object e = CacheEntityLoaderHelper.INSTANCE.loadFromSecondLevelCache(
+                                new LoadEvent(id, eType.getName(), true, (EventSource) session, null), persister,
+                                ((SessionImplementor) session).generateEntityKey(id, persister)
+                        );
+                        if (e != null) return eType.cast(e);
+                    }
+                }
+            }
+            return read(session -> session.get(eType, id));
+        });
+    }
+
+
+    /**
+     * 实体能否只从二级缓存中组装: 启用了缓存且没有关联属性(组装关联可能查数据库)
+     * @param persister 实体
+     */
+    protected boolean cacheOnly(EntityPersister persister) {
+        if (!persister.canReadFromCache()) return false;
+        for (Type t : persister.getPropertyTypes()) {
+            if (t.isAssociationType()) return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * 实体是否启用了二级缓存
+     * @param eType 实体类型
+     */
+    protected boolean cached(Class<? extends IEntity> eType) {
+        if (sf == null) throw new RuntimeException("Please init first");
+        return ((MetamodelImplementor) sf.getMetamodel()).locateEntityPersister(eType).canReadFromCache();
+    }
+
+
+    /**
+     * 二级缓存统计 {@link LocalRegionFactory}
+     * @return 缓存区域名 -> 存储. 没有启用(属性 cache.local)时为空
+     */
+    public Map<String, LocalRegionFactory.Storage> getCacheStats() {
+        if (sf == null) throw new RuntimeException("Please init first");
+        Object factory = ((SessionFactoryImpl) sf).getCache().getRegionFactory();
+        return factory instanceof LocalRegionFactory ? ((LocalRegionFactory) factory).getStorages() : Collections.emptyMap();
     }
 
 
@@ -318,10 +877,10 @@ public class Repo implements AutoCloseable {
     public <E extends IEntity> E byAttr(Class<E> eType, String attrName, Object attrValue) {
         if (eType == null) throw new IllegalArgumentException("Param eType required");
         if (attrName == null || attrName.isEmpty()) throw new IllegalArgumentException("Param attrName required");
-        return row(eType, (root, query, cb) -> {
+        return metric("byAttr", null, () -> row(eType, (root, query, cb) -> {
             if (attrValue == null) return cb.isNull(root.get(attrName));
             else return cb.equal(root.get(attrName), attrValue);
-        });
+        }, cached(eType)));
     }
 
 
@@ -338,10 +897,10 @@ public class Repo implements AutoCloseable {
         if (eType == null) throw new IllegalArgumentException("Param eType required");
         if (attrName1 == null || attrName1.isEmpty()) throw new IllegalArgumentException("Param attrName1 required");
         if (attrName2 == null || attrName2.isEmpty()) throw new IllegalArgumentException("Param attrName2 required");
-        return row(eType, (root, query, cb) -> cb.and(
+        return metric("byAttr", null, () -> row(eType, (root, query, cb) -> cb.and(
                 attrValue1 == null ? cb.isNull(root.get(attrName1)) : cb.equal(root.get(attrName1), attrValue1),
                 attrValue2 == null ? cb.isNull(root.get(attrName2)) : cb.equal(root.get(attrName2), attrValue2)
-        ));
+        ), cached(eType)));
     }
 
 
@@ -351,15 +910,25 @@ public class Repo implements AutoCloseable {
      * @param spec 条件
      * @return 实体{@link E}
      */
-    public <E extends IEntity> E row(Class<E> eType, CriteriaSpec<E, E> spec) {
+    public <E extends IEntity> E row(Class<E> eType, CriteriaSpec<E, E> spec) { return metric("row", null, () -> row(eType, spec, false)); }
+
+
+    /**
+     * 查询一个实体
+     * @param eType 实体类型
+     * @param spec 条件
+     * @param cacheable 是否使用查询缓存(表有更新时自动失效)
+     * @return 实体
+     */
+    protected <E extends IEntity> E row(Class<E> eType, CriteriaSpec<E, E> spec, boolean cacheable) {
         if (eType == null) throw new IllegalArgumentException("Param eType required");
-        return trans(session -> {
+        return read(session -> {
             CriteriaBuilder cb = session.getCriteriaBuilder();
             CriteriaQuery<E> query = cb.createQuery(eType);
             Root<E> root = query.from(eType);
             Object p = spec == null ? null : spec.toPredicate(root, query, cb);
             if (p instanceof Predicate) query.where((Predicate) p);
-            List<E> ls = session.createQuery(query).setMaxResults(1).list();
+            List<E> ls = session.createQuery(query).setMaxResults(1).setCacheable(cacheable).list();
             return (ls.size() == 1 ? ls.get(0) : null);
         });
     }
@@ -372,7 +941,11 @@ public class Repo implements AutoCloseable {
      */
     public <E extends IEntity> void delete(E entity) {
         if (entity == null) throw new IllegalArgumentException("Param entity required");
-        trans(session -> {session.delete(entity); return null;});
+        metric("delete", null, () -> trans(session -> {
+            session.delete(entity);
+            written(session, entity.getClass());
+            return null;
+        }));
     }
 
 
@@ -386,77 +959,212 @@ public class Repo implements AutoCloseable {
     public <E extends IEntity> boolean delete(Class<E> eType, Serializable id) {
         if (eType == null) throw new IllegalArgumentException("Param eType required");
         if (id == null) throw new IllegalArgumentException("Param id required");
-        return trans(session -> session.createQuery("delete from " + eType.getSimpleName() + " where id=:id")
-                .setParameter("id", id)
-                .executeUpdate() > 0
-        );
+        return metric("delete", null, () -> trans(session -> {
+            written(session, eType);
+            return session.createQuery("delete from " + eType.getSimpleName() + " where id=:id")
+                    .setParameter("id", id)
+                    .executeUpdate() > 0;
+        }));
     }
 
 
     /**
-     * sql update delete insert 执行
-     * @param sql sql语句
-     * @param params 参数
-     * @return 影响条数
+     * 带结果缓存的 sql 查询 {@link CachedQuery}
+     * 例: repo.cache().rows("select * from test where age > ?", 10)
+     * @return {@link CachedQuery}
      */
-    public int execute(String sql, Object...params) {
-        if (sql == null || sql.isEmpty()) throw new IllegalArgumentException("Param sql required");
-        return trans(session -> fillParam(session.createNativeQuery(sql).unwrap(NativeQueryImpl.class), params).executeUpdate());
+    public CachedQuery cache() {
+        if (sf == null) throw new RuntimeException("Please init first");
+        return new CachedQuery(this, queryCache);
     }
 
 
     /**
-     * hql 查询单条记录
-     * @param hql hql
-     * @param wrap 返回类型class
-     * @param params 参数列表
-     * @param <R> 类型
+     * sql 查询结果缓存
+     * @return {@link QueryCache}
      */
-    public <R> R hqlRow(String hql, Class<R> wrap, Object...params) {
-        return (R) trans(session -> {
-            List ls = fillParam(session.createQuery(hql, wrap), params).list();
-            return ls == null || ls.isEmpty() ? null : ls.get(0);
-        });
-    }
+    public QueryCache getQueryCache() { return queryCache; }
 
 
     /**
-     * hql 查询多条记录
-     * @param hql hql
-     * @param wrap 返回的类型
-     * @param params 参数
-     * @param <R> 类型
-     * @return 列表
+     * 实体表被写: 使 sql 查询结果缓存失效
      */
-    public <R> List<R> hqlRows(String hql, Class<R> wrap,  Object...params) {
-        return trans(session -> fillParam(session.createQuery(hql, wrap), params).list());
+    protected void written(Session session, Class<?>... eTypes) {
+        Set<String> tables = new HashSet<>();
+        for (Class<?> eType : eTypes) tables.addAll(entityTables(eType));
+        written(session, tables);
     }
 
 
     /**
-     * sql 查询一条数据(返回第一条满足条件的数据)
-     * @param sql sql 语句
-     * @param params 参数
-     * @return 一条记录 {@link Map}
+     * 实体对应的表(小写)
+     * @param eType 实体类型
      */
-    public Map<String, Object> row(String sql, Object...params) { return row(sql, Map.class, params); }
+    protected Set<String> entityTables(Class<?> eType) {
+        Set<String> tables = new HashSet<>();
+        for (Serializable t : ((MetamodelImplementor) sf.getMetamodel()).locateEntityPersister(eType).getQuerySpaces()) {
+            tables.add(QueryCache.normalize(t.toString()));
+        }
+        return tables;
+    }
 
 
     /**
-     * sql 查询 一行数据(返回第一条满足条件的数据)
-     * @param sql sql 语句
-     * @param wrap 返回结果包装的类型
-     * @param params 参数
-     * @param <R> 包装类型
-     * @return 一条记录 {@link R}
+     * 表被写: 使 sql 查询结果缓存失效
+     * 立即失效一次, 事务结束(提交/回滚)后再失效一次: 防止事务提交前其它线程把旧数据缓存
+     * @param table 表名. null: 不能解析表名, 全部失效
+     */
+    protected void written(Session session, String table) {
+        written(session, table == null ? null : Collections.singleton(table));
+    }
+
+
+    protected void written(Session session, Collection<String> tables) {
+        if (queryCache == null) return;
+        queryCache.invalidate(tables); countCache.invalidate(tables);
+        session.getTransaction().registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {}
+
+            @Override
+            public void afterCompletion(int status) { queryCache.invalidate(tables); countCache.invalidate(tables); }
+        });
+    }
+
+
+    /**
+     * sql update delete insert 执行
+     * @param sql sql语句
+     * @param params 参数
+     * @return 影响条数
+     */
+    public int execute(String sql, Object...params) {
+        if (sql == null || sql.isEmpty()) throw new IllegalArgumentException("Param sql required");
+        return metric("execute", sql, () -> trans(session -> {
+            written(session, QueryCache.writeTable(sql));
+            return fillParam(session.createNativeQuery(sql).unwrap(NativeQueryImpl.class), params).executeUpdate();
+        }));
+    }
+
+
+    /**
+     * sql update delete insert 批量执行(jdbc batch)
+     * {@link #executeBatch(String, Iterable, int)}
+     * @param sql sql语句
+     * @param paramRows 每行的参数
+     * @return 每行影响条数
+     */
+    public int[] executeBatch(String sql, Iterable<Object[]> paramRows) {
+        return executeBatch(sql, paramRows, getBatchSize());
+    }
+
+
+    /**
+     * sql update delete insert 批量执行(jdbc batch)
+     * 直接使用当前Session的连接 {@link PreparedStatement#addBatch()}, 每 batchSize 行 executeBatch 一次
+     * NOTE: 只支持位置参数 ?
+     * NOTE: mysql 需要连接串设置 rewriteBatchedStatements=true 才会合并为多值语句, 此时返回的影响条数可能为 {@link java.sql.Statement#SUCCESS_NO_INFO}
+     * @param sql sql语句
+     * @param paramRows 每行的参数
+     * @param batchSize 每批大小 >=1
+     * @return 每行影响条数
+     */
+    public int[] executeBatch(String sql, Iterable<Object[]> paramRows, int batchSize) {
+        if (sql == null || sql.isEmpty()) throw new IllegalArgumentException("Param sql required");
+        if (paramRows == null) throw new IllegalArgumentException("Param paramRows required");
+        if (batchSize < 1) throw new IllegalArgumentException("Param batchSize >=1");
+        return metric("executeBatch", sql, () -> trans(session -> {
+            session.flush(); // 先把当前Session中未提交的实体变更刷到数据库
+            written(session, QueryCache.writeTable(sql));
+            return session.doReturningWork(conn -> {
+                List<int[]> batches = new LinkedList<>();
+                int total = 0, pending = 0;
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    for (Object[] params : paramRows) {
+                        if (params != null) {
+                            for (int i = 0; i < params.length; i++) {
+                                Object v = params[i];
+                                if (v instanceof java.util.Date && !(v instanceof java.sql.Date || v instanceof java.sql.Time || v instanceof java.sql.Timestamp)) {
+                                    v = new java.sql.Timestamp(((java.util.Date) v).getTime());
+                                }
+                                ps.setObject(i + 1, v);
+                            }
+                        }
+                        ps.addBatch();
+                        if (++pending >= batchSize) {
+                            int[] rs = ps.executeBatch();
+                            batches.add(rs); total += rs.length; pending = 0;
+                        }
+                    }
+                    if (pending > 0) {
+                        int[] rs = ps.executeBatch();
+                        batches.add(rs); total += rs.length;
+                    }
+                }
+                int[] result = new int[total];
+                int pos = 0;
+                for (int[] rs : batches) {
+                    System.arraycopy(rs, 0, result, pos, rs.length);
+                    pos += rs.length;
+                }
+                return result;
+            });
+        }));
+    }
+
+
+    /**
+     * hql 查询单条记录
+     * @param hql hql
+     * @param wrap 返回类型class
+     * @param params 参数列表
+     * @param <R> 类型
+     */
+    public <R> R hqlRow(String hql, Class<R> wrap, Object...params) {
+        return metric("hqlRow", hql, () -> (R) read(session -> {
+            List ls = fillParam(session.createQuery(hql, wrap), params).list();
+            return ls == null || ls.isEmpty() ? null : ls.get(0);
+        }));
+    }
+
+
+    /**
+     * hql 查询多条记录
+     * @param hql hql
+     * @param wrap 返回的类型
+     * @param params 参数
+     * @param <R> 类型
+     * @return 列表
+     */
+    public <R> List<R> hqlRows(String hql, Class<R> wrap,  Object...params) {
+        return metric("hqlRows", hql, () -> read(session -> fillParam(session.createQuery(hql, wrap), params).list()));
+    }
+
+
+    /**
+     * sql 查询一条数据(返回第一条满足条件的数据)
+     * @param sql sql 语句
+     * @param params 参数
+     * @return 一条记录 {@link Map}
+     */
+    public Map<String, Object> row(String sql, Object...params) { return row(sql, Map.class, params); }
+
+
+    /**
+     * sql 查询 一行数据(返回第一条满足条件的数据)
+     * @param sql sql 语句
+     * @param wrap 返回结果包装的类型
+     * @param params 参数
+     * @param <R> 包装类型
+     * @return 一条记录 {@link R}
      */
     public <R> R row(String sql, Class<R> wrap, Object...params) {
         if (sql == null || sql.isEmpty()) throw new IllegalArgumentException("Param sql required");
         if (wrap == null) throw new IllegalArgumentException("Param warp required");
-        return (R) trans(session -> {
+        return metric("row", sql, () -> (R) read(session -> {
             List ls = fillParam(session.createNativeQuery(sql).unwrap(NativeQueryImpl.class).setResultTransformer(warpTransformer(wrap)), params).setMaxResults(1).list();
             return ls == null || ls.isEmpty() ? null : ls.get(0);
-        });
+        }));
     }
 
 
@@ -480,7 +1188,138 @@ public class Repo implements AutoCloseable {
     public <R> List<R> rows(String sql, Class<R> wrap, Object...params) {
         if (sql == null || sql.isEmpty()) throw new IllegalArgumentException("Param sql required");
         if (wrap == null) throw new IllegalArgumentException("Param warp required");
-        return trans(session -> fillParam(session.createNativeQuery(sql).unwrap(NativeQueryImpl.class).setResultTransformer(warpTransformer(wrap)), params).list());
+        return metric("rows", sql, () -> read(session -> fillParam(session.createNativeQuery(sql).unwrap(NativeQueryImpl.class).setResultTransformer(warpTransformer(wrap)), params).list()));
+    }
+
+
+    /**
+     * sql 流式查询: 基于游标逐行读取, 不会一次性把结果全部加载到内存
+     * 1. 在事务中调用: 流随事务结束而关闭
+     * 2. 不在事务中调用: 单独开启一个事务, 流关闭时提交. 必须关闭流(try-with-resources)
+     * NOTE: mysql 流式读取期间, 同一连接上不能执行其它sql
+     * @param sql sql 语句
+     * @param wrap 返回结果包装的类型
+     * @param params sql参数
+     * @param <R> 包装类型
+     * @return {@link Stream<R>}
+     */
+    public <R> Stream<R> stream(String sql, Class<R> wrap, Object...params) {
+        if (sql == null || sql.isEmpty()) throw new IllegalArgumentException("Param sql required");
+        if (wrap == null) throw new IllegalArgumentException("Param warp required");
+        if (sf == null) throw new RuntimeException("Please init first");
+        if (txFlag.get()) return scroll(currentSession(), sql, wrap, params);
+        Session s = sf.openSession();
+        Transaction tx = onReplica(s::beginTransaction);
+        try {
+            return scroll(s, sql, wrap, params).onClose(() -> {
+                try {
+                    if (tx.getStatus().canRollback()) tx.commit();
+                } finally {
+                    s.close();
+                }
+            });
+        } catch (RuntimeException ex) {
+            tx.rollback(); s.close();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * sql 流式查询: 基于游标逐行回调, 不会一次性把结果全部加载到内存
+     * @param sql sql 语句
+     * @param wrap 返回结果包装的类型
+     * @param fn 每行回调
+     * @param params sql参数
+     * @param <R> 包装类型
+     * @return 处理的条数
+     */
+    public <R> long forEach(String sql, Class<R> wrap, Consumer<R> fn, Object...params) {
+        if (sql == null || sql.isEmpty()) throw new IllegalArgumentException("Param sql required");
+        if (wrap == null) throw new IllegalArgumentException("Param warp required");
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        return metric("forEach", sql, () -> read(session -> {
+            long count = 0;
+            try (Stream<R> stream = scroll(session, sql, wrap, params)) {
+                Iterator<R> it = stream.iterator();
+                while (it.hasNext()) {
+                    fn.accept(it.next()); count++;
+                }
+            }
+            return count;
+        }));
+    }
+
+
+    /**
+     * sql 查询结果发布者: 按订阅者的请求数从游标读取, 不会一次性把结果加载到内存 {@link RowPublisher}
+     * 例: repo.publisher("select * from test", Map.class).subscribe(subscriber)
+     * @param sql sql 语句
+     * @param wrap 返回结果包装的类型
+     * @param params sql参数
+     * @param <R> 包装类型
+     * @return {@link RowPublisher}
+     */
+    public <R> RowPublisher<R> publisher(String sql, Class<R> wrap, Object...params) {
+        if (sql == null || sql.isEmpty()) throw new IllegalArgumentException("Param sql required");
+        if (wrap == null) throw new IllegalArgumentException("Param warp required");
+        if (sf == null) throw new RuntimeException("Please init first");
+        return new RowPublisher<>(this, s -> fillParam(((AbstractSharedSessionContract) s).createNativeQuery(sql).unwrap(NativeQueryImpl.class).setResultTransformer(warpTransformer(wrap)), params)
+                .setFetchSize(getStreamFetchSize()).setReadOnly(true).scroll(ScrollMode.FORWARD_ONLY));
+    }
+
+
+    /**
+     * 创建只进游标查询的流
+     * @param session {@link Session}
+     * @param sql sql 语句
+     * @param wrap 返回结果包装的类型
+     * @param params sql参数
+     * @return {@link Stream<R>}
+     */
+    protected <R> Stream<R> scroll(Session session, String sql, Class<R> wrap, Object[] params) {
+        Query query = fillParam(session.createNativeQuery(sql).unwrap(NativeQueryImpl.class).setResultTransformer(warpTransformer(wrap)), params)
+                .setFetchSize(getStreamFetchSize()).setReadOnly(true);
+        return toStream(query.scroll(ScrollMode.FORWARD_ONLY));
+    }
+
+
+    /**
+     * 游标结果转换成流
+     * @param results {@link ScrollableResults}
+     * @return {@link Stream<R>} 流关闭时关闭游标
+     */
+    protected <R> Stream<R> toStream(ScrollableResults results) {
+        Iterator<R> it = new Iterator<R>() {
+            Boolean hasNext;
+            @Override
+            public boolean hasNext() {
+                if (hasNext == null) hasNext = results.next();
+                return hasNext;
+            }
+
+            @Override
+            public R next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                hasNext = null;
+                return (R) results.get(0);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(results::close);
+    }
+
+
+    /**
+     * 流式查询时jdbc fetchSize: 属性 streamFetchSize
+     * 默认: mysql 为 {@link Integer#MIN_VALUE}(逐行流式读取), 其它 1000
+     * @return fetchSize
+     */
+    protected int getStreamFetchSize() {
+        Object v = attrs.get("streamFetchSize");
+        if (v != null && !v.toString().isEmpty()) return Integer.parseInt(v.toString());
+        String dialect = getDialect().toLowerCase();
+        return dialect.contains("mysql") || dialect.contains("maria") ? Integer.MIN_VALUE : 1000;
     }
 
 
@@ -508,40 +1347,158 @@ public class Repo implements AutoCloseable {
      * @return 一页记录 {@link Page<T> }
      */
     public <T> Page<T> paging(String sql, Integer page, Integer limit, Class<T> wrap, Object...params) {
+        return paging(sql, page, limit, CountMode.EXACT, wrap, params);
+    }
+
+
+    /**
+     * sql 分页查询
+     * @param sql sql 语句
+     * @param page 第几页 >=1
+     * @param limit 每页大小 >=1
+     * @param countMode 总条数统计方式 {@link CountMode}
+     * @param wrap 结果包装类型
+     * @param params sql参数
+     * @param <T> 包装类型
+     * @return 一页记录 {@link Page<T> }
+     */
+    public <T> Page<T> paging(String sql, Integer page, Integer limit, CountMode countMode, Class<T> wrap, Object...params) {
         if (sql == null || sql.isEmpty()) throw new IllegalArgumentException("Param sql required");
         if (wrap == null) throw new IllegalArgumentException("Param warp required");
         if (page == null || page < 1) throw new IllegalArgumentException("Param page >=1");
         if (limit == null || limit < 1) throw new IllegalArgumentException("Param limit >=1");
-        return trans(session -> {
+        CountMode mode = countMode == null ? CountMode.EXACT : countMode;
+        return metric("paging", sql, () -> read(session -> {
+            Page<T> result = new Page<T>().setPage(page).setPageSize(limit);
+            if (CountMode.NONE == mode) { // 多查一条, 判断是否有下一页
+                List ls = fillParam(session.createNativeQuery(sql).unwrap(NativeQueryImpl.class).setResultTransformer(warpTransformer(wrap)), params)
+                        .setFirstResult((page - 1) * limit).setMaxResults(limit + 1).list();
+                return result.setHasNext(ls.size() > limit).setList(ls.size() > limit ? new ArrayList<>(ls.subList(0, limit)) : ls);
+            }
+            String windowSql = CountMode.WINDOW == mode ? windowCountSql(sql) : null;
+            if (windowSql != null) { // 一次查询同时得到总条数
+                long[] total = {-1};
+                List ls = fillParam(session.createNativeQuery(windowSql).unwrap(NativeQueryImpl.class).setResultTransformer(windowTransformer(warpTransformer(wrap), total)), params)
+                        .setFirstResult((page - 1) * limit).setMaxResults(limit).list();
+                result.setList(ls);
+                if (total[0] >= 0) return result.setTotalRow(total[0]);
+                if (page == 1) return result.setTotalRow(0L);
+                // 超出最后一页时没有数据行携带总条数
+                return result.setTotalRow(countSql(session, sql, params));
+            }
             // 当前页数据查询
             Query listQuery = fillParam(session.createNativeQuery(sql).unwrap(NativeQueryImpl.class).setResultTransformer(warpTransformer(wrap)), params);
+            result.setList(listQuery.setFirstResult((page - 1) * limit).setMaxResults(limit).list());
             // 总条数查询
-            Query countQuery = fillParam(session.createNativeQuery("select count(1) from (" + sql + ") t1").unwrap(NativeQueryImpl.class), params);
-            return new Page<>().setPage(page).setPageSize(limit)
-                    .setList(listQuery.setFirstResult((page - 1) * limit).setMaxResults(limit).list())
-                    .setTotalRow(((Number) countQuery.setMaxResults(1).getSingleResult()).longValue());
-        });
+            if (CountMode.CACHED == mode) {
+                return result.setTotalRow(cachedCount(sql + "\n" + Arrays.deepToString(params), QueryCache.readTables(sql), () -> countSql(session, sql, params)));
+            }
+            return result.setTotalRow(countSql(session, sql, params));
+        }));
+    }
+
+
+    /**
+     * sql 总条数查询
+     * @param session {@link Session}
+     * @param sql sql 语句
+     * @param params sql参数
+     * @return 总条数
+     */
+    protected long countSql(Session session, String sql, Object[] params) {
+        Query countQuery = fillParam(session.createNativeQuery("select count(1) from (" + sql + ") t1").unwrap(NativeQueryImpl.class), params);
+        return ((Number) countQuery.setMaxResults(1).getSingleResult()).longValue();
+    }
+
+
+    /**
+     * 从缓存 {@link #countCache} 中取总条数, 不存在或过期时重新统计
+     * @param key 缓存key
+     * @param tables 统计涉及的表: 表被写时失效
+     * @param countFn 统计函数
+     * @return 总条数
+     */
+    protected long cachedCount(String key, Set<String> tables, Supplier<Long> countFn) {
+        return countCache.get(key, tables, null, countFn);
+    }
+
+
+    /**
+     * 窗口函数总条数查询sql: select ..., count(*) over() as _total_ from ...
+     * @param sql 原sql
+     * @return null: 数据库或sql不支持
+     */
+    protected String windowCountSql(String sql) {
+        String dialect = getDialect().toLowerCase();
+        if (!(dialect.contains("h2") || dialect.contains("mysql8") || dialect.contains("postgre") || dialect.contains("oracle")
+                || dialect.contains("sqlserver") || dialect.contains("mariadb10"))) return null;
+        String lower = sql.toLowerCase();
+        // 只处理最外层的 select ... from ...
+        int depth = 0, from = -1;
+        char quote = 0;
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (quote != 0) { if (c == quote) quote = 0; continue; }
+            if (c == '\'' || c == '"' || c == '`') quote = c;
+            else if (c == '(') depth++;
+            else if (c == ')') depth--;
+            else if (depth == 0 && (i == 0 || !Character.isJavaIdentifierPart(lower.charAt(i - 1)))) {
+                if (lower.startsWith("union", i) || lower.startsWith("intersect", i) || lower.startsWith("except", i)) return null;
+                if (from < 0 && lower.startsWith("from", i) && (i + 4 == lower.length() || !Character.isJavaIdentifierPart(lower.charAt(i + 4)))) from = i;
+            }
+        }
+        // distinct 在窗口函数之后执行, 总条数会不对
+        if (from < 0 || !lower.trim().startsWith("select") || lower.trim().substring(6).trim().startsWith("distinct")) return null;
+        return sql.substring(0, from) + ", count(*) over() as _total_ " + sql.substring(from);
+    }
+
+
+    /**
+     * 取出窗口函数总条数列, 其它列交给原 {@link ResultTransformer}
+     * @param delegate 原 {@link ResultTransformer}
+     * @param total 总条数接收
+     */
+    protected ResultTransformer windowTransformer(ResultTransformer delegate, long[] total) {
+        return new BasicTransformerAdapter() {
+            String[] srcAliases, aliases;
+            @Override
+            public Object transformTuple(Object[] tuple, String[] srcAliases) {
+                int last = tuple.length - 1;
+                total[0] = ((Number) tuple[last]).longValue();
+                if (this.srcAliases != srcAliases) {
+                    this.srcAliases = srcAliases;
+                    this.aliases = Arrays.copyOf(srcAliases, last);
+                }
+                return delegate.transformTuple(Arrays.copyOf(tuple, last), aliases);
+            }
+        };
     }
 
 
+    // 参数绑定计划缓存: 查询语句 -> 按出现顺序排好的命名参数名(位置参数时为空数组)
+    protected LRUCache<String, String[]> paramPlans;
     /**
      * sql 参数装配
      * 1. 位置参数 例 ?
      * 2. 命名参数 例 :name
+     * 同一查询语句的参数顺序只解析一次 {@link #getParamPlanCache()}
      * @param query QueryImplementor
      * @param params sql参数
      */
     protected Query fillParam(Query query, Object[] params) {
         if (params == null || params.length < 1) return query;
-        List<QueryParameter> nps = new ArrayList<>(query.getParameterMetadata().getNamedParameters());
-        if (nps.size() > 0) { //命名参数sql/hql
+        String[] names = paramPlans.computeIfAbsent(query.getQueryString(), qs -> {
+            List<QueryParameter> nps = new ArrayList<>(query.getParameterMetadata().getNamedParameters());
             Collections.sort(nps, Comparator.comparingInt(o -> o.getSourceLocations()[0]));
-            for (int i = 0, length = Math.min(params.length, nps.size()); i < length; i++) {
+            return nps.stream().map(QueryParameter::getName).toArray(String[]::new);
+        });
+        if (names.length > 0) { //命名参数sql/hql
+            for (int i = 0, length = Math.min(params.length, names.length); i < length; i++) {
                 Object v = params[i];
                 if (v == null) continue;
-                if (v instanceof Collection) query.setParameterList(nps.get(i).getName(), (Collection) v);
-                else if (v.getClass().isArray()) query.setParameterList(nps.get(i).getName(), (Object[]) v);
-                else query.setParameter(nps.get(i).getName(), v);
+                if (v instanceof Collection) query.setParameterList(names[i], (Collection) v);
+                else if (v.getClass().isArray()) query.setParameterList(names[i], (Object[]) v);
+                else query.setParameter(names[i], v);
             }
         } else { //位置参数sql/hql
             for (int i = 0; i < params.length; i++) {
@@ -556,63 +1513,107 @@ public class Repo implements AutoCloseable {
     }
 
 
+    /**
+     * 参数绑定计划缓存(含命中统计)
+     * 大小: 属性 paramPlanCacheSize, 默认 512
+     * @return {@link LRUCache}
+     */
+    public LRUCache<String, String[]> getParamPlanCache() { return paramPlans; }
+
+
     /**
      * 结果解析通用工具
      * @param wrap 类型
      * @return {@link ResultTransformer}
      */
     protected <T> ResultTransformer warpTransformer(Class<T> wrap) {
-        return Map.class.isAssignableFrom(wrap) ? Transformers.ALIAS_TO_ENTITY_MAP : new BasicTransformerAdapter() {
-            T t;
-            @Override
-            public Object transformTuple(Object[] tuple, String[] aliases) {
+        return Map.class.isAssignableFrom(wrap) ? Transformers.ALIAS_TO_ENTITY_MAP : RowMapper.of(wrap, rowMapperLoose);
+    }
+
+
+    /**
+     * 查询全部数据
+     * @param eType 实体类型
+     * @return 全部数据 {@link List<E>}
+     */
+    public <E extends IEntity> List<E> all(Class<E> eType) { return rows(eType, null, null, null); }
+
+
+    /**
+     * 实体流式查询: 使用 {@link StatelessSession} 和只进游标, 实体不进入一级缓存, 内存占用恒定
+     * NOTE: 使用单独的连接和事务, 流关闭时提交. 必须关闭流(try-with-resources)
+     * NOTE: 返回的实体不会延迟加载关联属性
+     * @param eType 实体类型
+     * @param spec 条件
+     * @return {@link Stream<E>}
+     */
+    public <E extends IEntity> Stream<E> stream(Class<E> eType, CriteriaSpec<E, E> spec) {
+        if (eType == null) throw new IllegalArgumentException("Param eType required");
+        if (sf == null) throw new RuntimeException("Please init first");
+        StatelessSession s = sf.openStatelessSession();
+        Transaction tx = onReplica(s::beginTransaction);
+        try {
+            CriteriaBuilder cb = sf.getCriteriaBuilder();
+            CriteriaQuery<E> cQuery = cb.createQuery(eType);
+            Root<E> root = cQuery.from(eType);
+            Object p = spec == null ? null : spec.toPredicate(root, cQuery, cb);
+            if (p instanceof Predicate) cQuery.where((Predicate) p);
+            Query<E> query = ((AbstractSharedSessionContract) s).createQuery(cQuery).setFetchSize(getStreamFetchSize());
+            return this.<E>toStream(query.scroll(ScrollMode.FORWARD_ONLY)).onClose(() -> {
                 try {
-                    t = wrap.newInstance();
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-                for (int i=0; i<tuple.length; i++ ) {
-                    String alias = aliases[i];
-                    if (alias != null) {
-                        try {
-                            set(alias, tuple[i]);
-                        } catch (Exception e) {
-                            log.error("Set property error. type: " + wrap.getName() + ", property: " + alias, e);
-                        }
-                    }
+                    if (tx.getStatus().canRollback()) tx.commit();
+                } finally {
+                    s.close();
                 }
-                return t;
-            }
+            });
+        } catch (RuntimeException ex) {
+            tx.rollback(); s.close();
+            throw ex;
+        }
+    }
 
-            // 为属性或字段设值
-            void set(String alias, Object value) throws Exception {
-                if (value == null) return;
-                try {
-                    Method setter = wrap.getMethod("set" + (alias.substring(0,1).toUpperCase() + alias.substring(1)), value.getClass());
-                    if (setter != null) {
-                        setter.setAccessible(true);
-                        setter.invoke(t, value);
-                        return;
-                    }
-                } catch (NoSuchMethodException e) {/** ignore **/}
-                try {
-                    Field field = wrap.getField(alias);
-                    if (field != null) {
-                        field.setAccessible(true);
-                        field.set(t, value);
-                    }
-                } catch (NoSuchFieldException e) {/** ignore **/}
+
+    /**
+     * 实体流式查询: 逐个回调
+     * {@link #stream(Class, CriteriaSpec)}
+     * @param eType 实体类型
+     * @param spec 条件
+     * @param fn 每个实体回调
+     * @return 处理的条数
+     */
+    public <E extends IEntity> long forEach(Class<E> eType, CriteriaSpec<E, E> spec, Consumer<E> fn) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        return metric("forEach", null, () -> {
+            long count = 0;
+            try (Stream<E> stream = stream(eType, spec)) {
+                Iterator<E> it = stream.iterator();
+                while (it.hasNext()) {
+                    fn.accept(it.next()); count++;
+                }
             }
-        };
+            return count;
+        });
     }
 
 
     /**
-     * 查询全部数据
+     * 实体查询结果发布者: 按订阅者的请求数从游标读取 {@link RowPublisher}
      * @param eType 实体类型
-     * @return 全部数据 {@link List<E>}
+     * @param spec 条件
+     * @return {@link RowPublisher}
      */
-    public <E extends IEntity> List<E> all(Class<E> eType) { return rows(eType, null, null, null); }
+    public <E extends IEntity> RowPublisher<E> publisher(Class<E> eType, CriteriaSpec<E, E> spec) {
+        if (eType == null) throw new IllegalArgumentException("Param eType required");
+        if (sf == null) throw new RuntimeException("Please init first");
+        return new RowPublisher<>(this, s -> {
+            CriteriaBuilder cb = sf.getCriteriaBuilder();
+            CriteriaQuery<E> cQuery = cb.createQuery(eType);
+            Root<E> root = cQuery.from(eType);
+            Object p = spec == null ? null : spec.toPredicate(root, cQuery, cb);
+            if (p instanceof Predicate) cQuery.where((Predicate) p);
+            return ((AbstractSharedSessionContract) s).createQuery(cQuery).setFetchSize(getStreamFetchSize()).scroll(ScrollMode.FORWARD_ONLY);
+        });
+    }
 
 
     /**
@@ -650,7 +1651,7 @@ public class Repo implements AutoCloseable {
         if (eType == null) throw new IllegalArgumentException("Param eType required");
         if (start != null && start < 0) throw new IllegalArgumentException("Param start >= 0 or not give");
         if (limit != null && limit <= 0) throw new IllegalArgumentException("Param limit must > 0 or not give");
-        return trans(session -> {
+        return metric("rows", null, () -> read(session -> {
             CriteriaBuilder cb = session.getCriteriaBuilder();
             CriteriaQuery<E> cQuery = cb.createQuery(eType);
             Root<E> root = cQuery.from(eType);
@@ -660,7 +1661,7 @@ public class Repo implements AutoCloseable {
             if (start != null) query.setFirstResult(start);
             if (limit != null) query.setMaxResults(limit);
             return query.list();
-        });
+        }));
     }
 
 
@@ -698,19 +1699,152 @@ public class Repo implements AutoCloseable {
      * @return 一页实体 {@link Page}
      */
     public <E extends IEntity> Page<E> paging(Class<E> eType, Integer page, Integer limit, CriteriaSpec<E, E> listSpec, CriteriaSpec<E, Long> countSpec) {
+        return paging(eType, page, limit, listSpec, countSpec, CountMode.EXACT);
+    }
+
+    /**
+     * 分页查询
+     * @param eType 实体类型
+     * @param page 当前第几页. >=1
+     * @param limit 每页大小 >=1
+     * @param listSpec 条件
+     * @param countSpec 条件
+     * @param countMode 总条数统计方式. {@link CountMode#WINDOW} 同 {@link CountMode#EXACT}
+     * @return 一页实体 {@link Page}
+     */
+    public <E extends IEntity> Page<E> paging(Class<E> eType, Integer page, Integer limit, CriteriaSpec<E, E> listSpec, CriteriaSpec<E, Long> countSpec, CountMode countMode) {
         if (eType == null) throw new IllegalArgumentException("Param eType required");
         if (page == null || page < 1) throw new IllegalArgumentException("Param page >=1");
         if (limit == null || limit < 1) throw new IllegalArgumentException("Param limit >=1");
-        return trans(session -> {
+        CountMode mode = countMode == null ? CountMode.EXACT : countMode;
+        return metric("paging", null, () -> read(session -> {
             CriteriaBuilder cb = session.getCriteriaBuilder();
             CriteriaQuery<E> query = cb.createQuery(eType);
             Root<E> root = query.from(eType);
             Object p = listSpec == null ? null : listSpec.toPredicate(root, query, cb);
             if (p instanceof Predicate) query.where((Predicate) p);
-            return new Page<E>().setPage(page).setPageSize(limit)
-                    .setList(session.createQuery(query).setFirstResult((page - 1) * limit).setMaxResults(limit).list())
-                    .setTotalRow(count(eType, countSpec == null ? ((CriteriaSpec) listSpec) : countSpec));
+            Page<E> result = new Page<E>().setPage(page).setPageSize(limit);
+            if (CountMode.NONE == mode) { // 多查一条, 判断是否有下一页
+                List<E> ls = session.createQuery(query).setFirstResult((page - 1) * limit).setMaxResults(limit + 1).list();
+                return result.setHasNext(ls.size() > limit).setList(ls.size() > limit ? new ArrayList<>(ls.subList(0, limit)) : ls);
+            }
+            result.setList(session.createQuery(query).setFirstResult((page - 1) * limit).setMaxResults(limit).list());
+            Query<Long> countQuery = countQuery(session, eType, countSpec == null ? ((CriteriaSpec) listSpec) : countSpec);
+            if (CountMode.CACHED == mode) {
+                return result.setTotalRow(cachedCount(queryKey(countQuery), entityTables(eType), countQuery::getSingleResult));
+            }
+            return result.setTotalRow(countQuery.getSingleResult());
+        }));
+    }
+
+
+    /**
+     * 查询的缓存key: 查询语句 + 参数值
+     * @param query {@link Query}
+     * @return key
+     */
+    protected String queryKey(Query query) {
+        StringBuilder sb = new StringBuilder(query.getQueryString());
+        Set<javax.persistence.Parameter<?>> ps = query.getParameters();
+        ps.stream().sorted(Comparator.comparing(o -> o.getName() == null ? String.valueOf(o.getPosition()) : o.getName())).forEach(o -> {
+            Object v = query.getParameterValue(o);
+            sb.append("\n").append(o.getName() == null ? o.getPosition() : o.getName()).append("=")
+                    .append(v != null && v.getClass().isArray() ? Arrays.deepToString(new Object[]{v}) : v);
         });
+        return sb.toString();
+    }
+
+
+    /**
+     * 游标(keyset)分页查询: 单个排序字段
+     * {@link #seek(Class, CriteriaSpec, List, Object[], Integer)}
+     * @param eType 实体类型
+     * @param spec 条件
+     * @param sortAttr 排序属性(唯一). 例: "id", "id desc"
+     * @param afterKey 上一页返回的 {@link KeysetPage#getNextKey()}[0], null: 第一页
+     * @param limit 每页大小 >=1
+     * @return 一页实体 {@link KeysetPage}
+     */
+    public <E extends IEntity> KeysetPage<E> seek(Class<E> eType, CriteriaSpec<E, E> spec, String sortAttr, Object afterKey, Integer limit) {
+        return seek(eType, spec, Collections.singletonList(sortAttr), afterKey == null ? null : new Object[]{afterKey}, limit);
+    }
+
+
+    /**
+     * 游标(keyset)分页查询
+     * 把 afterKey 转换成 where (k1,k2) > (?,?) order by k1,k2 limit n 条件, 每页查询代价与页深度无关
+     * NOTE: 排序属性组合必须唯一(一般最后一个为id), 且值不能为null
+     * @param eType 实体类型
+     * @param spec 条件
+     * @param sortAttrs 排序属性. 例: ["createTime desc", "id desc"], 默认 asc
+     * @param afterKey 上一页返回的 {@link KeysetPage#getNextKey()}, null: 第一页
+     * @param limit 每页大小 >=1
+     * @return 一页实体 {@link KeysetPage}
+     */
+    public <E extends IEntity> KeysetPage<E> seek(Class<E> eType, CriteriaSpec<E, E> spec, List<String> sortAttrs, Object[] afterKey, Integer limit) {
+        if (eType == null) throw new IllegalArgumentException("Param eType required");
+        if (sortAttrs == null || sortAttrs.isEmpty()) throw new IllegalArgumentException("Param sortAttrs required");
+        if (afterKey != null && afterKey.length != sortAttrs.size()) throw new IllegalArgumentException("Param afterKey length must equal sortAttrs size");
+        if (limit == null || limit < 1) throw new IllegalArgumentException("Param limit >=1");
+        String[] names = new String[sortAttrs.size()];
+        boolean[] desc = new boolean[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String[] arr = sortAttrs.get(i) == null ? new String[0] : sortAttrs.get(i).trim().split("\\s+");
+            if (arr.length < 1 || arr[0].isEmpty()) throw new IllegalArgumentException("Param sortAttrs[" + i + "] required");
+            names[i] = arr[0];
+            desc[i] = arr.length > 1 && "desc".equalsIgnoreCase(arr[1]);
+        }
+        return metric("seek", null, () -> read(session -> {
+            CriteriaBuilder cb = session.getCriteriaBuilder();
+            CriteriaQuery<E> query = cb.createQuery(eType);
+            Root<E> root = query.from(eType);
+            Object p = spec == null ? null : spec.toPredicate(root, query, cb);
+            List<Predicate> ps = new LinkedList<>();
+            if (p instanceof Predicate) ps.add((Predicate) p);
+            if (afterKey != null) ps.add(keysetPredicate(cb, root, names, desc, afterKey));
+            query.where(ps.toArray(new Predicate[0]));
+            List<Order> orders = new LinkedList<>();
+            for (int i = 0; i < names.length; i++) {
+                orders.add(desc[i] ? cb.desc(root.get(names[i])) : cb.asc(root.get(names[i])));
+            }
+            query.orderBy(orders);
+            // 多查一条, 判断是否有下一页
+            List<E> ls = session.createQuery(query).setMaxResults(limit + 1).list();
+            KeysetPage<E> result = new KeysetPage<E>().setPageSize(limit);
+            if (ls.size() > limit) {
+                ls = new ArrayList<>(ls.subList(0, limit));
+                E last = ls.get(limit - 1);
+                EntityPersister persister = ((MetamodelImplementor) sf.getMetamodel()).locateEntityPersister(eType);
+                Object[] nextKey = new Object[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    nextKey[i] = names[i].equals(persister.getIdentifierPropertyName()) ?
+                            persister.getIdentifier(last, (SharedSessionContractImplementor) session) : persister.getPropertyValue(last, names[i]);
+                }
+                result.setNextKey(nextKey);
+            }
+            return result.setList(ls);
+        }));
+    }
+
+
+    /**
+     * 游标条件: (k1,k2,k3) > (v1,v2,v3) 展开为
+     * k1 >= v1 and (k1 > v1 or (k1 = v1 and k2 > v2) or (k1 = v1 and k2 = v2 and k3 > v3))
+     * 第一个 k1 >= v1 条件用于让数据库走索引范围扫描
+     */
+    protected <E> Predicate keysetPredicate(CriteriaBuilder cb, Root<E> root, String[] names, boolean[] desc, Object[] afterKey) {
+        Predicate[] ors = new Predicate[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Predicate[] ands = new Predicate[i + 1];
+            for (int j = 0; j < i; j++) {
+                ands[j] = cb.equal(root.get(names[j]), afterKey[j]);
+            }
+            Expression k = root.get(names[i]);
+            ands[i] = desc[i] ? cb.lessThan(k, (Comparable) afterKey[i]) : cb.greaterThan(k, (Comparable) afterKey[i]);
+            ors[i] = cb.and(ands);
+        }
+        Expression k0 = root.get(names[0]);
+        return cb.and(desc[0] ? cb.lessThanOrEqualTo(k0, (Comparable) afterKey[0]) : cb.greaterThanOrEqualTo(k0, (Comparable) afterKey[0]), cb.or(ors));
     }
 
 
@@ -731,17 +1865,27 @@ public class Repo implements AutoCloseable {
      */
     public <E extends IEntity> long count(Class<E> eType, CriteriaSpec<E, Long> spec) {
         if (eType == null) throw new IllegalArgumentException("Param eType required");
-        return trans(session -> {
-            CriteriaBuilder cb = session.getCriteriaBuilder();
-            CriteriaQuery<Long> query = cb.createQuery(Long.class);
-            Root<E> root = query.from(eType);
-            if (query.isDistinct()) query.select(cb.countDistinct(root));
-            else query.select(cb.count(root));
-            Object p = spec == null ? null : spec.toPredicate(root, query, cb);
-            if (p instanceof Predicate) query.where((Predicate) p);
-            query.orderBy(Collections.emptyList()); // 移除排序
-            return session.createQuery(query).getSingleResult();
-        });
+        return metric("count", null, () -> read(session -> countQuery(session, eType, spec).getSingleResult()));
+    }
+
+
+    /**
+     * 创建实体统计查询
+     * @param session {@link Session}
+     * @param eType 实体类型
+     * @param spec 条件
+     * @return 统计 {@link Query}
+     */
+    protected <E extends IEntity> Query<Long> countQuery(Session session, Class<E> eType, CriteriaSpec<E, Long> spec) {
+        CriteriaBuilder cb = session.getCriteriaBuilder();
+        CriteriaQuery<Long> query = cb.createQuery(Long.class);
+        Root<E> root = query.from(eType);
+        if (query.isDistinct()) query.select(cb.countDistinct(root));
+        else query.select(cb.count(root));
+        Object p = spec == null ? null : spec.toPredicate(root, query, cb);
+        if (p instanceof Predicate) query.where((Predicate) p);
+        query.orderBy(Collections.emptyList()); // 移除排序
+        return session.createQuery(query);
     }
 
 
@@ -755,7 +1899,7 @@ public class Repo implements AutoCloseable {
     public <E extends IEntity> long count(Class<E> eType, String attrName, Object attrValue) {
         if (eType == null) throw new IllegalArgumentException("Param eType required");
         if (attrName == null || attrName.isEmpty()) throw new IllegalArgumentException("Param attrName required");
-        return trans(session -> {
+        return metric("count", null, () -> read(session -> {
             CriteriaBuilder cb = session.getCriteriaBuilder();
             CriteriaQuery<Long> query = cb.createQuery(Long.class);
             Root<E> root = query.from(eType);
@@ -763,7 +1907,7 @@ public class Repo implements AutoCloseable {
             else query.select(cb.count(root));
             query.where(attrValue == null ? cb.isNull(root.get(attrName)) : cb.equal(root.get(attrName), attrValue));
             return session.createQuery(query).getSingleResult();
-        });
+        }));
     }
 
 
@@ -780,7 +1924,7 @@ public class Repo implements AutoCloseable {
         if (eType == null) throw new IllegalArgumentException("Param eType required");
         if (attrName1 == null || attrName1.isEmpty()) throw new IllegalArgumentException("Param attrName1 required");
         if (attrName2 == null || attrName2.isEmpty()) throw new IllegalArgumentException("Param attrName2 required");
-        return trans(session -> {
+        return metric("count", null, () -> read(session -> {
             CriteriaBuilder cb = session.getCriteriaBuilder();
             CriteriaQuery<Long> query = cb.createQuery(Long.class);
             Root<E> root = query.from(eType);
@@ -791,29 +1935,19 @@ public class Repo implements AutoCloseable {
                     attrValue2 == null ? cb.isNull(root.get(attrName2)) : cb.equal(root.get(attrName2), attrValue2)
             ));
             return session.createQuery(query).getSingleResult();
-        });
+        }));
     }
 
 
     /**
-     * 根据条件查是否存在
+     * 根据条件查是否存在: select 1 ... limit 1, 找到第一条即返回, 不做 count
      * @param eType 实体类型
      * @param spec 条件
      * @return true: 存在, false: 不存在
      */
     public <E extends IEntity> boolean exist(Class<E> eType, CriteriaSpec<E, Long> spec) {
         if (eType == null) throw new IllegalArgumentException("Param eType required");
-        return trans(session -> {
-            CriteriaBuilder cb = session.getCriteriaBuilder();
-            CriteriaQuery<Long> query = cb.createQuery(Long.class);
-            Root<E> root = query.from(eType);
-            Object p = spec == null ? null : spec.toPredicate(root, query, cb);
-            if (query.isDistinct()) query.select(cb.countDistinct(root));
-            else query.select(cb.count(root));
-            query.orderBy(Collections.emptyList());
-            if (p instanceof Predicate) query.where((Predicate) p);
-            return session.createQuery(query).setMaxResults(1).getSingleResult() > 0;
-        });
+        return metric("exist", null, () -> read(session -> existQuery(session, eType, spec == null ? null : (root, query, cb) -> spec.toPredicate(root, (CriteriaQuery) query, cb))));
     }
 
 
@@ -826,29 +1960,23 @@ public class Repo implements AutoCloseable {
 
 
     /**
-     * 根据实体类, 统计
+     * 根据属性查是否存在 {@link #exist(Class, CriteriaSpec)}
      * @param eType 实体类型
      * @param attrName 属性名
      * @param attrValue 属性值
-     * @return 条数
+     * @return true: 存在, false: 不存在
      */
     public <E extends IEntity> boolean exist(Class<E> eType, String attrName, Object attrValue) {
         if (eType == null) throw new IllegalArgumentException("Param eType required");
         if (attrName == null || attrName.isEmpty()) throw new IllegalArgumentException("Param attrName required");
-        return trans(session -> {
-            CriteriaBuilder cb = session.getCriteriaBuilder();
-            CriteriaQuery<Long> query = cb.createQuery(Long.class);
-            Root<E> root = query.from(eType);
-            if (query.isDistinct()) query.select(cb.countDistinct(root));
-            else query.select(cb.count(root));
-            query.where(attrValue == null ? cb.isNull(root.get(attrName)) : cb.equal(root.get(attrName), attrValue));
-            return session.createQuery(query).setMaxResults(1).getSingleResult() > 0;
-        });
+        return metric("exist", null, () -> read(session -> existQuery(session, eType, (root, query, cb) ->
+                attrValue == null ? cb.isNull(root.get(attrName)) : cb.equal(root.get(attrName), attrValue)
+        )));
     }
 
 
     /**
-     * 实体是否存在
+     * 实体是否存在 {@link #exist(Class, CriteriaSpec)}
      * @param eType 实体类型
      * @param attrName1 属性名1
      * @param attrValue1 属性值1
@@ -859,18 +1987,30 @@ public class Repo implements AutoCloseable {
         if (eType == null) throw new IllegalArgumentException("Param eType required");
         if (attrName1 == null || attrName1.isEmpty()) throw new IllegalArgumentException("Param attrName1 required");
         if (attrName2 == null || attrName2.isEmpty()) throw new IllegalArgumentException("Param attrName2 required");
-        return trans(session -> {
-            CriteriaBuilder cb = session.getCriteriaBuilder();
-            CriteriaQuery<Long> query = cb.createQuery(Long.class);
-            Root<E> root = query.from(eType);
-            if (query.isDistinct()) query.select(cb.countDistinct(root));
-            else query.select(cb.count(root));
-            query.where(cb.and(
-                    attrValue1 == null ? cb.isNull(root.get(attrName1)) : cb.equal(root.get(attrName1), attrValue1),
-                    attrValue2 == null ? cb.isNull(root.get(attrName2)) : cb.equal(root.get(attrName2), attrValue2)
-            ));
-            return session.createQuery(query).setMaxResults(1).getSingleResult() > 0;
-        });
+        return metric("exist", null, () -> read(session -> existQuery(session, eType, (root, query, cb) -> cb.and(
+                attrValue1 == null ? cb.isNull(root.get(attrName1)) : cb.equal(root.get(attrName1), attrValue1),
+                attrValue2 == null ? cb.isNull(root.get(attrName2)) : cb.equal(root.get(attrName2), attrValue2)
+        ))));
+    }
+
+
+    /**
+     * 存在查询: select 1 from 表 where 条件 limit 1
+     * 条件中设置的 distinct, 排序忽略
+     * @param session {@link Session}
+     * @param eType 实体类型
+     * @param spec 条件
+     * @return true: 存在, false: 不存在
+     */
+    protected <E extends IEntity> boolean existQuery(Session session, Class<E> eType, CriteriaSpec<E, Integer> spec) {
+        CriteriaBuilder cb = session.getCriteriaBuilder();
+        CriteriaQuery<Integer> query = cb.createQuery(Integer.class);
+        Root<E> root = query.from(eType);
+        Object p = spec == null ? null : spec.toPredicate(root, query, cb);
+        query.select(cb.literal(1)).distinct(false);
+        query.orderBy(Collections.emptyList());
+        if (p instanceof Predicate) query.where((Predicate) p);
+        return !session.createQuery(query).setMaxResults(1).list().isEmpty();
     }
 
 
@@ -881,6 +2021,24 @@ public class Repo implements AutoCloseable {
     public SessionFactory getSessionFactory() { return sf; }
 
 
+    /**
+     * SnowFlake workerId 租约
+     * @return null: 没有启用(属性 snowFlake.lease)
+     */
+    public WorkerIdLease getWorkerIdLease() { return workerIdLease; }
+
+
+    /**
+     * 号段模式获取下一个id
+     * @param bizTag 业务标识
+     * @return id
+     */
+    public long segmentId(String bizTag) {
+        if (segmentIds == null) throw new RuntimeException("Please init first");
+        return segmentIds.nextId(bizTag);
+    }
+
+
     /**
      * 创建 SessionFactory
      * @param datasource 数据源
@@ -889,6 +2047,19 @@ public class Repo implements AutoCloseable {
      * @return {@link SessionFactory}
      */
     public static SessionFactory createSessionFactory(DataSource datasource, Map props, List<Class<? extends IEntity>> entities) {
+        return createSessionFactory(datasource, props, entities, new ThreadLocal<>());
+    }
+
+
+    /**
+     * 创建 SessionFactory
+     * @param datasource 数据源
+     * @param props hibernate 属性
+     * @param entities 实体类
+     * @param readOnlyConn 当前线程被设为只读的连接: 归还连接池前恢复 setReadOnly(false)
+     * @return {@link SessionFactory}
+     */
+    protected static SessionFactory createSessionFactory(DataSource datasource, Map props, List<Class<? extends IEntity>> entities, ThreadLocal<Connection> readOnlyConn) {
         props = props == null ? new HashMap<>() : props;
         props.putIfAbsent("hibernate.current_session_context_class", "thread"); // 会话和 线程绑定
         props.putIfAbsent("hibernate.temp.use_jdbc_metadata_defaults", "true"); // 自动探测连接的数据库信息,该用哪个Dialect
@@ -899,7 +2070,13 @@ public class Repo implements AutoCloseable {
                             public Connection getConnection() throws SQLException { return datasource.getConnection(); }
 
                             @Override
-                            public void closeConnection(Connection conn) throws SQLException { conn.close(); }
+                            public void closeConnection(Connection conn) throws SQLException {
+                                try {
+                                    if (readOnlyConn.get() == conn) { // 只读事务的连接: 恢复
+                                        conn.setReadOnly(false);
+                                    }
+                                } finally { conn.close(); }
+                            }
 
                             @Override
                             public boolean supportsAggressiveRelease() { return true; }
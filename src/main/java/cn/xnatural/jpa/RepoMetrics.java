@@ -0,0 +1,410 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * {@link Repo} 执行统计: 按方法(byId, rows, paging, execute, trans ...)和按 sql 指纹统计调用次数, 失败次数, 返回行数, 耗时分布
+ * 与连接池实现无关. 类似 pg_stat_statements 可查询最慢/最频繁的语句 {@link #top(int, By)}
+ * <p>
+ * sql 指纹: 字面量替换为 ?, in (?, ?) 合并为 in (?), 合并空白.
+ * 实体方法(criteria 查询)没有 sql 参数, 按 hibernate 生成的第一条 sql 统计
+ */
+public class RepoMetrics {
+    protected static final Pattern  STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    protected static final Pattern  NUMBER_LITERAL = Pattern.compile("(?<![\\w$.])-?\\d+(?:\\.\\d+)?(?![\\w$])");
+    protected static final Pattern  IN_LIST        = Pattern.compile("(?i)\\bin\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    protected static final Pattern  SPACES         = Pattern.compile("\\s+");
+    /**
+     * 超过最多 sql 指纹数时, 新的 sql 统计到这里
+     */
+    public static final    String   OTHER          = "<other>";
+    /**
+     * 方法名 -> 统计
+     */
+    protected final Map<String, Stat>   methods    = new ConcurrentHashMap<>();
+    /**
+     * sql 指纹 -> 统计
+     */
+    protected final Map<String, Stat>   statements = new ConcurrentHashMap<>();
+    /**
+     * 最多统计多少个 sql 指纹
+     */
+    protected final int                 maxStatements;
+    /**
+     * sql -> 指纹. 满了之后新的 sql 不再缓存, 每次计算
+     */
+    protected final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+    /**
+     * 最多缓存多少个 sql 指纹
+     */
+    protected final int                 maxFingerprints;
+
+
+    /**
+     * @param maxStatements 最多统计多少个 sql 指纹 >=1
+     */
+    public RepoMetrics(int maxStatements) {
+        if (maxStatements < 1) throw new IllegalArgumentException("Param maxStatements >=1");
+        this.maxStatements = maxStatements;
+        this.maxFingerprints = maxStatements * 2;
+    }
+
+
+    /**
+     * 记录一次调用
+     * @param method 方法名
+     * @param sql sql/hql. null: 不按 sql 统计
+     * @param nanos 耗时(纳秒)
+     * @param rows 返回/影响行数
+     * @param error 是否失败
+     */
+    public void record(String method, String sql, long nanos, long rows, boolean error) {
+        long micros = nanos / 1000;
+        if (method != null) methods.computeIfAbsent(method, Stat::new).record(micros, rows, error);
+        if (sql != null) {
+            String fp = fingerprint(sql);
+            Stat stat = statements.get(fp);
+            if (stat == null) {
+                stat = statements.size() < maxStatements ? statements.computeIfAbsent(fp, Stat::new) : statements.computeIfAbsent(OTHER, Stat::new);
+            }
+            stat.record(micros, rows, error);
+        }
+    }
+
+
+    /**
+     * sql 指纹
+     * @param sql sql
+     * @return 字面量替换为 ? 的 sql
+     */
+    public String fingerprint(String sql) {
+        String fp = fingerprints.get(sql);
+        if (fp != null) return fp;
+        fp = STRING_LITERAL.matcher(sql).replaceAll("?");
+        fp = NUMBER_LITERAL.matcher(fp).replaceAll("?");
+        fp = IN_LIST.matcher(fp).replaceAll("in (?)");
+        fp = SPACES.matcher(fp).replaceAll(" ").trim();
+        if (fingerprints.size() < maxFingerprints) fingerprints.put(sql, fp);
+        return fp;
+    }
+
+
+    /**
+     * 结果的行数
+     */
+    protected static long rows(Object result) {
+        if (result == null) return 0;
+        if (result instanceof Collection) return ((Collection) result).size();
+        if (result instanceof Page) return ((Page) result).getList() == null ? 0 : ((Page) result).getList().size();
+        if (result instanceof KeysetPage) return ((KeysetPage) result).getList() == null ? 0 : ((KeysetPage) result).getList().size();
+        if (result instanceof Integer) return (Integer) result; // 影响条数
+        if (result instanceof int[]) return ((int[]) result).length;
+        return 1;
+    }
+
+
+    /**
+     * 排序方式
+     */
+    public enum By {
+        /**
+         * 总耗时
+         */
+        TOTAL_TIME(Comparator.comparingLong(Snapshot::getTotalMicros)),
+        /**
+         * 平均耗时
+         */
+        MEAN_TIME(Comparator.comparingLong(Snapshot::getMeanMicros)),
+        /**
+         * p99 耗时
+         */
+        P99(Comparator.comparingLong(Snapshot::getP99Micros)),
+        /**
+         * 最大耗时
+         */
+        MAX_TIME(Comparator.comparingLong(Snapshot::getMaxMicros)),
+        /**
+         * 调用次数
+         */
+        CALLS(Comparator.comparingLong(Snapshot::getCalls)),
+        /**
+         * 返回行数
+         */
+        ROWS(Comparator.comparingLong(Snapshot::getRows));
+
+        final Comparator<Snapshot> comparator;
+
+        By(Comparator<Snapshot> comparator) { this.comparator = comparator; }
+    }
+
+
+    /**
+     * 前N个 sql 指纹统计
+     * @param n 个数
+     * @param by 排序方式(倒序)
+     * @return 统计快照
+     */
+    public List<Snapshot> top(int n, By by) {
+        if (by == null) throw new IllegalArgumentException("Param by required");
+        List<Snapshot> ls = new ArrayList<>(statements.size());
+        for (Stat stat : statements.values()) ls.add(stat.snapshot());
+        ls.sort(by.comparator.reversed());
+        return ls.size() > n ? new ArrayList<>(ls.subList(0, Math.max(0, n))) : ls;
+    }
+
+
+    /**
+     * 方法统计
+     * @return 方法名 -> 快照
+     */
+    public Map<String, Snapshot> getMethods() {
+        Map<String, Snapshot> result = new TreeMap<>();
+        methods.forEach((k, v) -> result.put(k, v.snapshot()));
+        return result;
+    }
+
+
+    /**
+     * 一个方法的统计
+     * @param method 方法名
+     * @return null: 没有调用过
+     */
+    public Snapshot method(String method) {
+        Stat stat = methods.get(method);
+        return stat == null ? null : stat.snapshot();
+    }
+
+
+    /**
+     * 一条 sql 的统计
+     * @param sql sql(相同指纹的)
+     * @return null: 没有执行过
+     */
+    public Snapshot statement(String sql) {
+        Stat stat = statements.get(fingerprint(sql));
+        return stat == null ? null : stat.snapshot();
+    }
+
+
+    /**
+     * 清空统计
+     */
+    public void reset() {
+        methods.clear();
+        statements.clear();
+    }
+
+
+    /**
+     * 统计报告: 所有方法 + 总耗时最多的前n个 sql
+     * @param n sql 个数
+     */
+    public String report(int n) {
+        StringBuilder sb = new StringBuilder("methods:\n");
+        getMethods().values().forEach(s -> sb.append("  ").append(s).append("\n"));
+        sb.append("top ").append(n).append(" statements by total time:\n");
+        top(n, By.TOTAL_TIME).forEach(s -> sb.append("  ").append(s).append("\n"));
+        return sb.toString();
+    }
+
+
+    @Override
+    public String toString() { return report(10); }
+
+
+    /**
+     * 一个方法/sql 的统计: 无锁记录
+     */
+    protected static class Stat {
+        protected final String    key;
+        protected final LongAdder calls  = new LongAdder();
+        protected final LongAdder errors = new LongAdder();
+        protected final LongAdder rows   = new LongAdder();
+        protected final Histogram latency = new Histogram();
+
+        Stat(String key) { this.key = key; }
+
+        void record(long micros, long rows, boolean error) {
+            calls.increment();
+            if (error) errors.increment();
+            else this.rows.add(rows);
+            latency.record(micros);
+        }
+
+        Snapshot snapshot() {
+            long calls = this.calls.sum();
+            long total = latency.getTotal();
+            return new Snapshot(key, calls, errors.sum(), rows.sum(), total, calls == 0 ? 0 : total / calls,
+                    latency.percentile(0.5), latency.percentile(0.9), latency.percentile(0.99), latency.getMax());
+        }
+    }
+
+
+    /**
+     * 耗时分布(微秒): 对数分桶, 每个2的幂区间再分8个线性子桶, 相对误差 <= 12.5%. 无锁记录
+     */
+    public static class Histogram {
+        protected static final int SUB_BITS = 3;
+        protected static final int SUB     = 1 << SUB_BITS;
+        /**
+         * 小于此值的精确记录
+         */
+        protected static final int LINEAR  = SUB * 2;
+        protected final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+        protected final LongAdder       total  = new LongAdder();
+        protected final AtomicLong      max    = new AtomicLong();
+
+        /**
+         * 值所在的桶
+         */
+        protected static int index(long v) {
+            if (v < LINEAR) return (int) v;
+            int e = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (e - SUB_BITS)) & (SUB - 1);
+            return LINEAR + (e - SUB_BITS - 1) * SUB + sub;
+        }
+
+        /**
+         * 桶的最大值
+         */
+        protected static long upper(int index) {
+            if (index < LINEAR) return index;
+            int e = (index - LINEAR) / SUB + SUB_BITS + 1;
+            int sub = (index - LINEAR) % SUB;
+            long lower = (long) (SUB + sub) << (e - SUB_BITS);
+            return lower + (1L << (e - SUB_BITS)) - 1;
+        }
+
+        public void record(long v) {
+            if (v < 0) v = 0;
+            counts.incrementAndGet(index(v));
+            total.add(v);
+            long m = max.get();
+            while (v > m && !max.compareAndSet(m, v)) m = max.get();
+        }
+
+        /**
+         * 百分位值
+         * @param p 0-1
+         */
+        public long percentile(double p) {
+            long count = 0;
+            long[] snapshot = new long[counts.length()];
+            for (int i = 0; i < snapshot.length; i++) { snapshot[i] = counts.get(i); count += snapshot[i]; }
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p * count));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return Math.min(upper(i), max.get());
+            }
+            return max.get();
+        }
+
+        public long getTotal() { return total.sum(); }
+
+        public long getMax() { return max.get(); }
+    }
+
+
+    /**
+     * 统计快照. 时间单位: 微秒
+     */
+    public static class Snapshot {
+        protected final String key;
+        protected final long   calls;
+        protected final long   errors;
+        protected final long   rows;
+        protected final long   totalMicros;
+        protected final long   meanMicros;
+        protected final long   p50Micros;
+        protected final long   p90Micros;
+        protected final long   p99Micros;
+        protected final long   maxMicros;
+
+        public Snapshot(String key, long calls, long errors, long rows, long totalMicros, long meanMicros, long p50Micros, long p90Micros, long p99Micros, long maxMicros) {
+            this.key = key;
+            this.calls = calls;
+            this.errors = errors;
+            this.rows = rows;
+            this.totalMicros = totalMicros;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        /**
+         * 方法名或 sql 指纹
+         */
+        public String getKey() { return key; }
+
+        public long getCalls() { return calls; }
+
+        public long getErrors() { return errors; }
+
+        public long getRows() { return rows; }
+
+        public long getTotalMicros() { return totalMicros; }
+
+        public long getMeanMicros() { return meanMicros; }
+
+        public long getP50Micros() { return p50Micros; }
+
+        public long getP90Micros() { return p90Micros; }
+
+        public long getP99Micros() { return p99Micros; }
+
+        public long getMaxMicros() { return maxMicros; }
+
+        @Override
+        public String toString() {
+            return key + " {calls=" + calls + ", errors=" + errors + ", rows=" + rows + ", totalMs=" + totalMicros / 1000 +
+                    ", meanUs=" + meanMicros + ", p50Us=" + p50Micros + ", p90Us=" + p90Micros + ", p99Us=" + p99Micros + ", maxUs=" + maxMicros + '}';
+        }
+    }
+
+
+    /**
+     * 记录当前线程 hibernate 执行的第一条 sql: 给没有 sql 参数的实体方法统计用
+     */
+    public static class SqlCapture implements StatementInspector {
+        protected static final ThreadLocal<String> first = new ThreadLocal<>();
+
+        @Override
+        public String inspect(String sql) {
+            if (first.get() == null) first.set(sql);
+            return sql;
+        }
+
+        /**
+         * 开始记录
+         * @return 之前的值, 结束时 {@link #end(String)} 恢复
+         */
+        static String begin() {
+            String prev = first.get();
+            first.remove();
+            return prev;
+        }
+
+        /**
+         * 结束记录
+         * @param prev {@link #begin()} 的返回值
+         * @return 记录到的第一条 sql
+         */
+        static String end(String prev) {
+            String sql = first.get();
+            if (prev == null) first.remove();
+            else first.set(prev);
+            return sql;
+        }
+    }
+}
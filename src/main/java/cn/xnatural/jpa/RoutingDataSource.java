@@ -0,0 +1,376 @@
+package cn.xnatural.jpa;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 读写分离数据源: 一个主库, 多个从库
+ * 当前线程标记为读 {@link #setRead(boolean)} 时从从库取连接, 否则从主库取连接.
+ * 从库取连接失败时退回主库
+ */
+public class RoutingDataSource implements DataSource, AutoCloseable {
+    protected static final Logger           log     = LoggerFactory.getLogger(RoutingDataSource.class);
+    /**
+     * 主库
+     */
+    protected final        DataSource       primary;
+    /**
+     * 从库
+     */
+    protected final        List<DataSource> replicas;
+    protected final        Balance          balance;
+    /**
+     * 每个从库的活动连接数
+     */
+    protected final        AtomicInteger[]  actives;
+    protected final        AtomicLong       counter = new AtomicLong();
+    /**
+     * 当前线程是否读从库
+     */
+    protected final        ThreadLocal<Boolean> readFlag = ThreadLocal.withInitial(() -> false);
+
+
+    /**
+     * 从库选择策略
+     */
+    public enum Balance {
+        /**
+         * 轮询
+         */
+        ROUND_ROBIN,
+        /**
+         * 活动连接数最少
+         */
+        LEAST_ACTIVE
+    }
+
+
+    /**
+     * @param primary 主库
+     * @param replicas 从库
+     * @param balance 从库选择策略
+     */
+    public RoutingDataSource(DataSource primary, List<DataSource> replicas, Balance balance) {
+        if (primary == null) throw new IllegalArgumentException("Param primary required");
+        this.primary = primary;
+        this.replicas = replicas == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(replicas));
+        this.balance = balance == null ? Balance.ROUND_ROBIN : balance;
+        this.actives = new AtomicInteger[this.replicas.size()];
+        for (int i = 0; i < actives.length; i++) actives[i] = new AtomicInteger();
+    }
+
+
+    /**
+     * 设置当前线程是否读从库
+     * @param read true: 从库
+     * @return 之前的值
+     */
+    public boolean setRead(boolean read) {
+        boolean prev = readFlag.get();
+        readFlag.set(read);
+        return prev;
+    }
+
+
+    /**
+     * 当前线程是否读从库
+     */
+    public boolean isRead() { return readFlag.get(); }
+
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (!readFlag.get() || replicas.isEmpty()) return primary.getConnection();
+        int i = select();
+        try {
+            Connection conn = replicas.get(i).getConnection();
+            // 只有按活动连接数选择时才需要统计
+            return balance == Balance.LEAST_ACTIVE ? new TrackedConnection(conn, actives[i]) : conn;
+        } catch (SQLException ex) {
+            log.warn("Get replica[" + i + "] connection error, use primary. " + ex.getMessage());
+            return primary.getConnection();
+        }
+    }
+
+
+    /**
+     * 选择一个从库
+     * @return 从库下标
+     */
+    protected int select() {
+        if (replicas.size() == 1) return 0;
+        if (balance == Balance.LEAST_ACTIVE) {
+            int idx = 0, min = Integer.MAX_VALUE;
+            int start = (int) (counter.getAndIncrement() % actives.length); // 相同时轮询
+            for (int j = 0; j < actives.length; j++) {
+                int i = (start + j) % actives.length;
+                int n = actives[i].get();
+                if (n < min) { min = n; idx = i; }
+            }
+            return idx;
+        }
+        return (int) (counter.getAndIncrement() % replicas.size());
+    }
+
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return primary.getConnection(username, password);
+    }
+
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) return (T) this;
+        return primary.unwrap(iface);
+    }
+
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || primary.isWrapperFor(iface);
+    }
+
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException { return primary.getLogWriter(); }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException { primary.setLogWriter(out); }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException { primary.setLoginTimeout(seconds); }
+
+    @Override
+    public int getLoginTimeout() throws SQLException { return primary.getLoginTimeout(); }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException { return primary.getParentLogger(); }
+
+
+    /**
+     * 关闭主库和从库
+     */
+    @Override
+    public void close() {
+        List<DataSource> all = new ArrayList<>(replicas);
+        all.add(primary);
+        for (DataSource ds : all) {
+            try {
+                ds.getClass().getMethod("close").invoke(ds);
+            } catch (Exception e) {}
+        }
+    }
+
+
+    public DataSource getPrimary() { return primary; }
+
+    public List<DataSource> getReplicas() { return replicas; }
+
+    public Balance getBalance() { return balance; }
+
+    /**
+     * 从库的活动连接数. 只在 {@link Balance#LEAST_ACTIVE} 时统计
+     * @param i 从库下标
+     */
+    public int getActive(int i) { return actives[i].get(); }
+
+
+    /**
+     * 统计活动连接: 连接关闭时减一
+     */
+    protected static class TrackedConnection implements Connection {
+        protected final Connection    conn;
+        protected final AtomicInteger active;
+        protected final AtomicBoolean closed = new AtomicBoolean();
+
+        TrackedConnection(Connection conn, AtomicInteger active) {
+            this.conn = conn;
+            this.active = active;
+            active.incrementAndGet();
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (closed.compareAndSet(false, true)) active.decrementAndGet();
+            conn.close();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            return iface.isInstance(this) ? (T) this : conn.unwrap(iface);
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) throws SQLException {
+            return iface.isInstance(this) || conn.isWrapperFor(iface);
+        }
+
+        @Override
+        public Statement createStatement() throws SQLException { return conn.createStatement(); }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql) throws SQLException { return conn.prepareStatement(sql); }
+
+        @Override
+        public CallableStatement prepareCall(String sql) throws SQLException { return conn.prepareCall(sql); }
+
+        @Override
+        public String nativeSQL(String sql) throws SQLException { return conn.nativeSQL(sql); }
+
+        @Override
+        public void setAutoCommit(boolean autoCommit) throws SQLException { conn.setAutoCommit(autoCommit); }
+
+        @Override
+        public boolean getAutoCommit() throws SQLException { return conn.getAutoCommit(); }
+
+        @Override
+        public void commit() throws SQLException { conn.commit(); }
+
+        @Override
+        public void rollback() throws SQLException { conn.rollback(); }
+
+        @Override
+        public boolean isClosed() throws SQLException { return conn.isClosed(); }
+
+        @Override
+        public DatabaseMetaData getMetaData() throws SQLException { return conn.getMetaData(); }
+
+        @Override
+        public void setReadOnly(boolean readOnly) throws SQLException { conn.setReadOnly(readOnly); }
+
+        @Override
+        public boolean isReadOnly() throws SQLException { return conn.isReadOnly(); }
+
+        @Override
+        public void setCatalog(String catalog) throws SQLException { conn.setCatalog(catalog); }
+
+        @Override
+        public String getCatalog() throws SQLException { return conn.getCatalog(); }
+
+        @Override
+        public void setTransactionIsolation(int level) throws SQLException { conn.setTransactionIsolation(level); }
+
+        @Override
+        public int getTransactionIsolation() throws SQLException { return conn.getTransactionIsolation(); }
+
+        @Override
+        public SQLWarning getWarnings() throws SQLException { return conn.getWarnings(); }
+
+        @Override
+        public void clearWarnings() throws SQLException { conn.clearWarnings(); }
+
+        @Override
+        public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException { return conn.createStatement(resultSetType, resultSetConcurrency); }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException { return conn.prepareStatement(sql, resultSetType, resultSetConcurrency); }
+
+        @Override
+        public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException { return conn.prepareCall(sql, resultSetType, resultSetConcurrency); }
+
+        @Override
+        public Map<String, Class<?>> getTypeMap() throws SQLException { return conn.getTypeMap(); }
+
+        @Override
+        public void setTypeMap(Map<String, Class<?>> map) throws SQLException { conn.setTypeMap(map); }
+
+        @Override
+        public void setHoldability(int holdability) throws SQLException { conn.setHoldability(holdability); }
+
+        @Override
+        public int getHoldability() throws SQLException { return conn.getHoldability(); }
+
+        @Override
+        public Savepoint setSavepoint() throws SQLException { return conn.setSavepoint(); }
+
+        @Override
+        public Savepoint setSavepoint(String name) throws SQLException { return conn.setSavepoint(name); }
+
+        @Override
+        public void rollback(Savepoint savepoint) throws SQLException { conn.rollback(savepoint); }
+
+        @Override
+        public void releaseSavepoint(Savepoint savepoint) throws SQLException { conn.releaseSavepoint(savepoint); }
+
+        @Override
+        public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException { return conn.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability); }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException { return conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability); }
+
+        @Override
+        public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException { return conn.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability); }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException { return conn.prepareStatement(sql, autoGeneratedKeys); }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException { return conn.prepareStatement(sql, columnIndexes); }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException { return conn.prepareStatement(sql, columnNames); }
+
+        @Override
+        public Clob createClob() throws SQLException { return conn.createClob(); }
+
+        @Override
+        public Blob createBlob() throws SQLException { return conn.createBlob(); }
+
+        @Override
+        public NClob createNClob() throws SQLException { return conn.createNClob(); }
+
+        @Override
+        public SQLXML createSQLXML() throws SQLException { return conn.createSQLXML(); }
+
+        @Override
+        public boolean isValid(int timeout) throws SQLException { return conn.isValid(timeout); }
+
+        @Override
+        public void setClientInfo(String name, String value) throws SQLClientInfoException { conn.setClientInfo(name, value); }
+
+        @Override
+        public void setClientInfo(Properties properties) throws SQLClientInfoException { conn.setClientInfo(properties); }
+
+        @Override
+        public String getClientInfo(String name) throws SQLException { return conn.getClientInfo(name); }
+
+        @Override
+        public Properties getClientInfo() throws SQLException { return conn.getClientInfo(); }
+
+        @Override
+        public Array createArrayOf(String typeName, Object[] elements) throws SQLException { return conn.createArrayOf(typeName, elements); }
+
+        @Override
+        public Struct createStruct(String typeName, Object[] attributes) throws SQLException { return conn.createStruct(typeName, attributes); }
+
+        @Override
+        public void setSchema(String schema) throws SQLException { conn.setSchema(schema); }
+
+        @Override
+        public String getSchema() throws SQLException { return conn.getSchema(); }
+
+        @Override
+        public void abort(Executor executor) throws SQLException { conn.abort(executor); }
+
+        @Override
+        public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException { conn.setNetworkTimeout(executor, milliseconds); }
+
+        @Override
+        public int getNetworkTimeout() throws SQLException { return conn.getNetworkTimeout(); }
+    }
+}
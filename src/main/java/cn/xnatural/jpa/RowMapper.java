@@ -0,0 +1,314 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.transform.BasicTransformerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Clob;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * sql 结果行 转换成 java bean
+ * 每个类型只解析一次 setter/字段 并生成 {@link MethodHandle}, 类型转换函数也提前确定, 所有查询共用
+ * 列名匹配属性: 1. setter: set + 列名(首字母大写) 2. public 字段: 和列名相同
+ * 宽松匹配(looseMatch, Repo 属性 rowMapper.looseMatch=true): 以上都没有时, 忽略大小写和下划线(CREATE_TIME -> createTime)
+ * @param <T> bean 类型
+ */
+public class RowMapper<T> extends BasicTransformerAdapter {
+    private static final   long                            serialVersionUID = 1L;
+    protected static final Logger                          log    = LoggerFactory.getLogger(RowMapper.class);
+    /**
+     * 类型 -> {@link RowMapper}. {@link ClassValue}: 不阻止类(及其类加载器)被回收
+     */
+    protected static final ClassValue<RowMapper<?>>        EXACT  = new ClassValue<RowMapper<?>>() {
+        @Override
+        protected RowMapper<?> computeValue(Class<?> type) { return new RowMapper<>(type, false); }
+    };
+    protected static final ClassValue<RowMapper<?>>        LOOSE  = new ClassValue<RowMapper<?>>() {
+        @Override
+        protected RowMapper<?> computeValue(Class<?> type) { return new RowMapper<>(type, true); }
+    };
+    /**
+     * bean 类型
+     */
+    protected final        Class<T>                        type;
+    /**
+     * 是否宽松匹配列名
+     */
+    protected final        boolean                         looseMatch;
+    /**
+     * 无参构造器
+     */
+    protected final        transient MethodHandle          constructor;
+    /**
+     * setter 方法名去掉 set -> 设值器
+     */
+    protected final transient Map<String, Setter>          setters = new HashMap<>();
+    /**
+     * public 字段名 -> 设值器
+     */
+    protected final transient Map<String, Setter>          fields  = new HashMap<>();
+    /**
+     * 属性名(小写, 去下划线) -> 设值器. 宽松匹配时才有
+     */
+    protected final transient Map<String, Setter>          loose   = new HashMap<>();
+    /**
+     * 列名 -> 设值器
+     */
+    protected final transient Map<String, Optional<Setter>> byAlias = new ConcurrentHashMap<>();
+    /**
+     * 最近一次查询的列名数组及对应的设值器(同一个sql的每行列名数组是同一个对象)
+     */
+    protected transient volatile Shape                     shape;
+
+
+    /**
+     * 获取类型对应的 {@link RowMapper}: 列名精确匹配
+     * @param type bean 类型
+     * @return {@link RowMapper}
+     */
+    public static <T> RowMapper<T> of(Class<T> type) { return of(type, false); }
+
+
+    /**
+     * 获取类型对应的 {@link RowMapper}
+     * @param type bean 类型
+     * @param looseMatch 是否宽松匹配列名(忽略大小写和下划线)
+     * @return {@link RowMapper}
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> RowMapper<T> of(Class<T> type, boolean looseMatch) {
+        return (RowMapper<T>) (looseMatch ? LOOSE : EXACT).get(type);
+    }
+
+
+    /**
+     * 反序列化: 用缓存的实例(MethodHandle 不能序列化)
+     */
+    protected Object readResolve() { return of(type, looseMatch); }
+
+
+    protected RowMapper(Class<T> type, boolean looseMatch) {
+        this.type = type;
+        this.looseMatch = looseMatch;
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Constructor<T> c = type.getDeclaredConstructor();
+            c.setAccessible(true);
+            constructor = lookup.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+        } catch (Exception e) {
+            throw new RuntimeException("Not found no-arg constructor: " + type.getName(), e);
+        }
+        // 公共字段
+        for (Field field : type.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())) continue;
+            try {
+                add(fields, field.getName(), field.getType(), lookup.unreflectSetter(field));
+            } catch (IllegalAccessException e) {/** ignore **/}
+        }
+        for (Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) || method.getParameterCount() != 1) continue;
+            String name = method.getName();
+            if (name.length() < 4 || !name.startsWith("set")) continue;
+            try {
+                method.setAccessible(true);
+                add(setters, name.substring(3), method.getParameterTypes()[0], lookup.unreflect(method));
+            } catch (Exception e) {/** ignore **/}
+        }
+        if (looseMatch) { // setter 方法优先于字段
+            fields.forEach((name, setter) -> loose.put(normalize(name), setter));
+            setters.forEach((name, setter) -> loose.put(normalize(name), setter));
+        }
+    }
+
+
+    /**
+     * 添加属性设值器: 同名的多个重载 setter 合并
+     * @param target 添加到
+     * @param name 名字
+     * @param pType 属性类型
+     * @param handle 设值 {@link MethodHandle}
+     */
+    protected static void add(Map<String, Setter> target, String name, Class<?> pType, MethodHandle handle) {
+        target.computeIfAbsent(name, k -> new Setter())
+                .add(wrapper(pType), handle.asType(MethodType.methodType(void.class, Object.class, Object.class)));
+    }
+
+
+    @Override
+    public Object transformTuple(Object[] tuple, String[] aliases) {
+        Shape sh = shape;
+        if (sh == null || sh.aliases != aliases) {
+            Setter[] setters = new Setter[aliases.length];
+            for (int i = 0; i < aliases.length; i++) {
+                String alias = aliases[i];
+                if (alias != null) setters[i] = byAlias.computeIfAbsent(alias, this::resolve).orElse(null);
+            }
+            shape = sh = new Shape(aliases, setters);
+        }
+        Object bean;
+        try {
+            bean = constructor.invokeExact();
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+        for (int i = 0; i < tuple.length; i++) {
+            Setter setter = sh.setters[i];
+            if (setter == null || tuple[i] == null) continue;
+            try {
+                setter.set(bean, tuple[i]);
+            } catch (Throwable e) {
+                log.error("Set property error. type: " + type.getName() + ", property: " + aliases[i], e);
+            }
+        }
+        return bean;
+    }
+
+
+    /**
+     * 列名对应的设值器
+     */
+    protected Optional<Setter> resolve(String alias) {
+        Setter setter = alias.isEmpty() ? null : setters.get(alias.substring(0, 1).toUpperCase() + alias.substring(1));
+        if (setter == null) setter = fields.get(alias);
+        if (setter == null && !loose.isEmpty()) setter = loose.get(normalize(alias));
+        return Optional.ofNullable(setter);
+    }
+
+
+    protected static String normalize(String name) { return name.replace("_", "").toLowerCase(); }
+
+
+    /**
+     * 列名数组 和 对应的设值器
+     */
+    protected static class Shape {
+        final String[] aliases;
+        final Setter[] setters;
+
+        Shape(String[] aliases, Setter[] setters) {
+            this.aliases = aliases;
+            this.setters = setters;
+        }
+    }
+
+
+    /**
+     * 属性设值器: 同名的多个重载 setter
+     */
+    protected static class Setter {
+        Class<?>[]          types      = new Class<?>[0];
+        MethodHandle[]      handles    = new MethodHandle[0];
+        Converter[]         converters = new Converter[0];
+
+        void add(Class<?> type, MethodHandle handle) {
+            int n = types.length;
+            types = Arrays.copyOf(types, n + 1); types[n] = type;
+            handles = Arrays.copyOf(handles, n + 1); handles[n] = handle;
+            converters = Arrays.copyOf(converters, n + 1); converters[n] = converter(type);
+        }
+
+        void set(Object bean, Object value) throws Throwable {
+            for (int i = 0; i < types.length; i++) {
+                if (types[i].isInstance(value)) {
+                    handles[i].invokeExact(bean, value);
+                    return;
+                }
+            }
+            for (int i = 0; i < types.length; i++) {
+                Object v = converters[i] == null ? null : converters[i].convert(value);
+                if (v != null) {
+                    handles[i].invokeExact(bean, v);
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 基本类型转换成包装类型
+     */
+    protected static Class<?> wrapper(Class<?> type) {
+        if (!type.isPrimitive()) return type;
+        if (type == int.class) return Integer.class;
+        if (type == long.class) return Long.class;
+        if (type == boolean.class) return Boolean.class;
+        if (type == double.class) return Double.class;
+        if (type == float.class) return Float.class;
+        if (type == short.class) return Short.class;
+        if (type == byte.class) return Byte.class;
+        if (type == char.class) return Character.class;
+        return type;
+    }
+
+
+    /**
+     * 值转换函数
+     */
+    @FunctionalInterface
+    protected interface Converter {
+        /**
+         * @return null: 不能转换
+         */
+        Object convert(Object v);
+    }
+
+
+    /**
+     * 目标类型的转换函数. 返回 null 表示不能转换
+     * @param type 目标类型
+     */
+    protected static Converter converter(Class<?> type) {
+        if (type == Long.class) return v -> v instanceof Number ? ((Number) v).longValue() : v instanceof String ? Long.valueOf((String) v) : null;
+        if (type == Integer.class) return v -> v instanceof Number ? ((Number) v).intValue() : v instanceof String ? Integer.valueOf((String) v) : null;
+        if (type == Short.class) return v -> v instanceof Number ? ((Number) v).shortValue() : null;
+        if (type == Byte.class) return v -> v instanceof Number ? ((Number) v).byteValue() : null;
+        if (type == Double.class) return v -> v instanceof Number ? ((Number) v).doubleValue() : v instanceof String ? Double.valueOf((String) v) : null;
+        if (type == Float.class) return v -> v instanceof Number ? ((Number) v).floatValue() : null;
+        if (type == BigDecimal.class) return v -> v instanceof BigInteger ? new BigDecimal((BigInteger) v) : v instanceof Number || v instanceof String ? new BigDecimal(v.toString()) : null;
+        if (type == BigInteger.class) return v -> v instanceof BigDecimal ? ((BigDecimal) v).toBigInteger() : v instanceof Number ? BigInteger.valueOf(((Number) v).longValue()) : null;
+        if (type == Boolean.class) return v -> v instanceof Number ? ((Number) v).intValue() != 0 : v instanceof String ? Boolean.valueOf((String) v) || "1".equals(v) : null;
+        if (type == String.class) return v -> {
+            if (v instanceof Clob) {
+                try {
+                    Clob clob = (Clob) v;
+                    return clob.getSubString(1, (int) clob.length());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return v.toString();
+        };
+        if (type == Date.class) return v -> v instanceof LocalDateTime ? Timestamp.valueOf((LocalDateTime) v) : v instanceof LocalDate ? java.sql.Date.valueOf((LocalDate) v) : null;
+        if (type == Timestamp.class) return v -> v instanceof Date ? new Timestamp(((Date) v).getTime()) : v instanceof LocalDateTime ? Timestamp.valueOf((LocalDateTime) v) : null;
+        if (type == LocalDateTime.class) return v -> v instanceof Timestamp ? ((Timestamp) v).toLocalDateTime() : v instanceof Date ? LocalDateTime.ofInstant(Instant.ofEpochMilli(((Date) v).getTime()), ZoneId.systemDefault()) : null;
+        if (type == LocalDate.class) return v -> v instanceof java.sql.Date ? ((java.sql.Date) v).toLocalDate() : v instanceof Timestamp ? ((Timestamp) v).toLocalDateTime().toLocalDate() : v instanceof LocalDateTime ? ((LocalDateTime) v).toLocalDate() : null;
+        if (type == LocalTime.class) return v -> v instanceof Time ? ((Time) v).toLocalTime() : null;
+        if (type.isEnum()) return v -> {
+            Object[] constants = type.getEnumConstants();
+            if (v instanceof Number) return constants[((Number) v).intValue()];
+            if (v instanceof String) {
+                for (Object c : constants) {
+                    if (((Enum<?>) c).name().equals(v)) return c;
+                }
+                throw new IllegalArgumentException("No enum constant " + type.getName() + "." + v);
+            }
+            return null;
+        };
+        return null;
+    }
+}
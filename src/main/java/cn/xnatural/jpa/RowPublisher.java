@@ -0,0 +1,200 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.ScrollableResults;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 查询结果发布者: 按订阅者的请求数从只进游标逐行读取, 不会把结果加载到内存 {@link Repo#publisher(String, Class, Object...)}
+ * 1. 每个订阅者单独执行一次查询(StatelessSession, 不缓存实体). 第一次 request 时取连接, 结束/取消/出错时释放
+ * 2. cancel 时取消正在执行的 jdbc statement
+ * 3. 默认在调用 request 的线程中读取, 可 {@link #executor(Executor)} 指定线程池
+ * @param <R> 数据类型
+ */
+public class RowPublisher<R> implements Flow.Publisher<R> {
+    protected static final Logger                                        log = LoggerFactory.getLogger(RowPublisher.class);
+    protected final        Repo                                          repo;
+    /**
+     * 执行查询得到游标
+     */
+    protected final        Function<StatelessSession, ScrollableResults> opener;
+    /**
+     * 读取数据的线程池. null: 调用 request 的线程
+     */
+    protected              Executor                                      executor;
+
+
+    protected RowPublisher(Repo repo, Function<StatelessSession, ScrollableResults> opener) {
+        this.repo = repo;
+        this.opener = opener;
+    }
+
+
+    /**
+     * 指定读取数据的线程池
+     * @param executor 线程池
+     * @return {@link RowPublisher}
+     */
+    public RowPublisher<R> executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super R> subscriber) {
+        if (subscriber == null) throw new NullPointerException("Param subscriber required");
+        subscriber.onSubscribe(new CursorSubscription(subscriber));
+    }
+
+
+    /**
+     * 一个订阅: 所有游标操作都在 {@link #drain()} 中串行执行
+     */
+    protected class CursorSubscription implements Flow.Subscription {
+        protected final    Flow.Subscriber<? super R> subscriber;
+        /**
+         * 未满足的请求数
+         */
+        protected final    AtomicLong                 demand = new AtomicLong();
+        /**
+         * 待执行的 drain 次数
+         */
+        protected final    AtomicInteger              wip    = new AtomicInteger();
+        protected volatile boolean                    cancelled;
+        protected volatile Throwable                  badRequest;
+        protected          boolean                    done;
+        protected volatile StatelessSession           session;
+        protected          Transaction                tx;
+        protected          ScrollableResults          results;
+
+        protected CursorSubscription(Flow.Subscriber<? super R> subscriber) { this.subscriber = subscriber; }
+
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("Param n >=1");
+            } else {
+                for (;;) {
+                    long d = demand.get();
+                    long next = d + n < 0 ? Long.MAX_VALUE : d + n;
+                    if (demand.compareAndSet(d, next)) break;
+                }
+            }
+            schedule();
+        }
+
+
+        @Override
+        public void cancel() {
+            if (cancelled) return;
+            cancelled = true;
+            StatelessSession s = session;
+            if (s != null) { // 取消正在执行的查询
+                try {
+                    ((SharedSessionContractImplementor) s).getJdbcCoordinator().cancelLastQuery();
+                } catch (Exception ex) {
+                    log.debug("Cancel query error: {}", ex.getMessage());
+                }
+            }
+            schedule();
+        }
+
+
+        protected void schedule() {
+            if (wip.getAndIncrement() != 0) return; // 正在 drain: 由它继续执行
+            if (executor == null) drain();
+            else {
+                try {
+                    executor.execute(this::drain);
+                } catch (RuntimeException ex) {
+                    wip.set(0); cancelled = true;
+                    release(false);
+                    subscriber.onError(ex);
+                }
+            }
+        }
+
+
+        protected void drain() {
+            int missed = 1;
+            do {
+                emit();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+
+        protected void emit() {
+            if (done) return;
+            if (cancelled) { done = true; release(false); return; }
+            if (badRequest != null) { done = true; release(false); subscriber.onError(badRequest); return; }
+            try {
+                while (demand.get() > 0 && !cancelled) {
+                    if (results == null) open();
+                    if (!results.next()) {
+                        done = true; release(true);
+                        subscriber.onComplete();
+                        return;
+                    }
+                    R r = (R) results.get(0);
+                    if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+                    subscriber.onNext(r);
+                }
+                if (cancelled) { done = true; release(false); }
+            } catch (Throwable ex) {
+                done = true; release(false);
+                if (!cancelled) subscriber.onError(ex); // 取消导致的查询异常不通知
+            }
+        }
+
+
+        /**
+         * 取连接, 执行查询
+         */
+        protected void open() {
+            session = repo.getSessionFactory().openStatelessSession();
+            tx = repo.onReplica(session::beginTransaction);
+            results = opener.apply(session);
+        }
+
+
+        /**
+         * 关闭游标, 结束事务, 释放连接
+         * @param commit true: 提交, false: 回滚
+         */
+        protected void release(boolean commit) {
+            StatelessSession s = session;
+            if (s == null) return;
+            session = null;
+            try {
+                if (results != null) results.close();
+            } catch (Exception ex) {
+                log.debug("Close results error: {}", ex.getMessage());
+            }
+            try {
+                if (tx != null && tx.getStatus().canRollback()) {
+                    if (commit) tx.commit();
+                    else tx.rollback();
+                }
+            } catch (Exception ex) {
+                log.debug("End transaction error: {}", ex.getMessage());
+            }
+            try {
+                s.close();
+            } catch (Exception ex) {
+                log.debug("Close session error: {}", ex.getMessage());
+            }
+            results = null; tx = null;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package cn.xnatural.jpa;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 号段模式 id 分配器(Leaf-segment)
+ * <p>
+ * 分配表按 biz_tag 区分业务, 每次 update max_id = max_id + step 取一个号段 [max_id - step, max_id).
+ * 每个 biz_tag 两个号段(双缓冲): 当前号段剩余不到 {@link #prefetchRatio} 时后台线程预取下一个号段,
+ * 当前号段用完直接切换, 稳定状态下 {@link #nextId(String)} 不会等待数据库
+ * <p>
+ * 分配表结构: biz_tag varchar(128) 主键, max_id bigint, step int, update_time timestamp.
+ * 不存在时自动创建; biz_tag 不存在时以 {@link #defaultStep} 自动插入
+ */
+public class SegmentIdAllocator implements AutoCloseable {
+    protected static final Logger                     log           = LoggerFactory.getLogger(SegmentIdAllocator.class);
+    protected final        DataSource                 dataSource;
+    /**
+     * 分配表名
+     */
+    protected final        String                     table;
+    /**
+     * biz_tag 不存在时的号段大小
+     */
+    protected final        int                        defaultStep;
+    /**
+     * 剩余比例小于此值时预取下一个号段
+     */
+    protected              double                     prefetchRatio = 0.1;
+    /**
+     * biz_tag -> 双缓冲
+     */
+    protected final        Map<String, SegmentBuffer> buffers       = new ConcurrentHashMap<>();
+    /**
+     * 预取号段的线程
+     */
+    protected final        ExecutorService            exec;
+    protected volatile     boolean                    tableChecked;
+
+
+    /**
+     * @param dataSource 数据源
+     * @param table 分配表名
+     * @param defaultStep biz_tag 不存在时的号段大小
+     */
+    public SegmentIdAllocator(DataSource dataSource, String table, int defaultStep) {
+        if (dataSource == null) throw new IllegalArgumentException("Param dataSource required");
+        if (table == null || table.isEmpty()) throw new IllegalArgumentException("Param table required");
+        if (defaultStep < 1) throw new IllegalArgumentException("Param defaultStep >= 1");
+        this.dataSource = dataSource;
+        this.table = table;
+        this.defaultStep = defaultStep;
+        this.exec = new ThreadPoolExecutor(0, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "segment-id-loader");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+
+    public SegmentIdAllocator(DataSource dataSource) { this(dataSource, "id_segment", 1000); }
+
+
+    /**
+     * 获取下一个id
+     * @param bizTag 业务标识
+     * @return id
+     */
+    public long nextId(String bizTag) {
+        if (bizTag == null || bizTag.isEmpty()) throw new IllegalArgumentException("Param bizTag required");
+        return buffers.computeIfAbsent(bizTag, SegmentBuffer::new).next();
+    }
+
+
+    /**
+     * 设置预取比例
+     * @param prefetchRatio (0, 1)
+     * @return {@link SegmentIdAllocator}
+     */
+    public SegmentIdAllocator setPrefetchRatio(double prefetchRatio) {
+        if (prefetchRatio <= 0 || prefetchRatio >= 1) throw new IllegalArgumentException("Param prefetchRatio must in (0, 1)");
+        this.prefetchRatio = prefetchRatio;
+        return this;
+    }
+
+
+    @Override
+    public void close() { exec.shutdownNow(); }
+
+
+    /**
+     * 从分配表取一个号段
+     * @param bizTag 业务标识
+     * @return 号段
+     */
+    protected Segment load(String bizTag) {
+        try (Connection conn = dataSource.getConnection()) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                if (!tableChecked) {
+                    createTableIfAbsent(conn);
+                    tableChecked = true;
+                }
+                Segment seg = allocate(conn, bizTag);
+                if (seg == null) { // biz_tag 不存在
+                    try (PreparedStatement pst = conn.prepareStatement("insert into " + table + " (biz_tag, max_id, step, update_time) values (?, ?, ?, ?)")) {
+                        pst.setString(1, bizTag);
+                        pst.setLong(2, 1);
+                        pst.setInt(3, defaultStep);
+                        pst.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+                        pst.executeUpdate();
+                    } catch (SQLException ex) { // 其它节点已插入
+                        log.debug("Insert biz_tag '{}' error: {}", bizTag, ex.getMessage());
+                    }
+                    seg = allocate(conn, bizTag);
+                    if (seg == null) throw new RuntimeException("Not found biz_tag: " + bizTag);
+                }
+                conn.commit();
+                log.debug("Loaded id segment. bizTag: {}, [{}, {})", bizTag, seg.cursor.get(), seg.end);
+                return seg;
+            } catch (Exception ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException("Load id segment error. bizTag: " + bizTag, ex);
+        }
+    }
+
+
+    /**
+     * 更新并读取号段
+     * @return null: biz_tag 不存在
+     */
+    protected Segment allocate(Connection conn, String bizTag) throws SQLException {
+        try (PreparedStatement pst = conn.prepareStatement("update " + table + " set max_id = max_id + step, update_time = ? where biz_tag = ?")) {
+            pst.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+            pst.setString(2, bizTag);
+            if (pst.executeUpdate() == 0) return null;
+        }
+        try (PreparedStatement pst = conn.prepareStatement("select max_id, step from " + table + " where biz_tag = ?")) {
+            pst.setString(1, bizTag);
+            try (ResultSet rs = pst.executeQuery()) {
+                if (!rs.next()) return null;
+                long max = rs.getLong(1);
+                return new Segment(max - rs.getInt(2), max);
+            }
+        }
+    }
+
+
+    /**
+     * 分配表不存在则创建
+     */
+    protected void createTableIfAbsent(Connection conn) throws SQLException {
+        DatabaseMetaData md = conn.getMetaData();
+        for (String t : new String[]{table, table.toUpperCase(), table.toLowerCase()}) {
+            try (ResultSet rs = md.getTables(conn.getCatalog(), null, t, null)) {
+                if (rs.next()) return;
+            }
+        }
+        try (Statement st = conn.createStatement()) {
+            st.execute("create table " + table + " (biz_tag varchar(128) not null primary key, max_id bigint not null, step int not null, update_time timestamp)");
+            log.info("Created id segment table: {}", table);
+        }
+    }
+
+
+    /**
+     * 号段: [start, end)
+     */
+    protected static class Segment {
+        final AtomicLong cursor;
+        final long       end;
+        final long       size;
+
+        Segment(long start, long end) {
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.size = end - start;
+        }
+    }
+
+
+    /**
+     * 一个 biz_tag 的双缓冲
+     */
+    protected class SegmentBuffer {
+        final          String        bizTag;
+        final          ReentrantLock lock    = new ReentrantLock();
+        final          Condition     loaded  = lock.newCondition();
+        volatile       Segment       current = new Segment(0, 0);
+        /**
+         * 预取的下一个号段
+         */
+        volatile       Segment       next;
+        /**
+         * 是否正在预取
+         */
+        volatile       boolean       loading;
+
+        SegmentBuffer(String bizTag) { this.bizTag = bizTag; }
+
+
+        long next() {
+            for (;;) {
+                Segment seg = current;
+                long id = seg.cursor.getAndIncrement();
+                if (id < seg.end) {
+                    if (next == null && !loading && seg.end - id < seg.size * prefetchRatio) prefetch();
+                    return id;
+                }
+                switchSegment(seg);
+            }
+        }
+
+
+        /**
+         * 后台预取下一个号段
+         */
+        void prefetch() {
+            lock.lock();
+            try {
+                if (loading || next != null) return;
+                loading = true;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                exec.execute(() -> {
+                    Segment seg = null;
+                    try {
+                        seg = load(bizTag);
+                    } catch (Exception ex) {
+                        log.error("Prefetch id segment error. bizTag: " + bizTag, ex);
+                    }
+                    lock.lock();
+                    try {
+                        next = seg; loading = false;
+                        loaded.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                lock.lock();
+                try { loading = false; } finally { lock.unlock(); }
+            }
+        }
+
+
+        /**
+         * 当前号段用完: 切换到预取的号段, 没有则等待预取完成或同步加载
+         */
+        void switchSegment(Segment exhausted) {
+            lock.lock();
+            try {
+                if (current != exhausted) return;
+                while (loading) loaded.awaitUninterruptibly();
+                if (next != null) {
+                    current = next; next = null;
+                } else {
+                    current = load(bizTag);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
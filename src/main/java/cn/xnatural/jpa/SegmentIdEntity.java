@@ -0,0 +1,26 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.annotations.GenericGenerator;
+
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.MappedSuperclass;
+
+/**
+ * 号段模式生成 long 主键的实体. 业务标识默认为表名
+ * @see SegmentIdGenerator
+ */
+@MappedSuperclass
+public class SegmentIdEntity extends BaseEntity {
+    @Id
+    @GeneratedValue(generator = "segmentId")
+    @GenericGenerator(name = "segmentId", strategy = "cn.xnatural.jpa.SegmentIdGenerator")
+    private Long id;
+
+    public Long getId() { return id; }
+
+    public SegmentIdEntity setId(Long id) {
+        this.id = id;
+        return this;
+    }
+}
@@ -0,0 +1,45 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.PersistentIdentifierGenerator;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 号段模式 id 生成策略
+ * 使用 {@link Repo} 创建的 {@link SegmentIdAllocator}
+ * <p>
+ * 配置(只在 @GenericGenerator parameters 中, 每个实体单独指定):
+ * segmentId.tag: 业务标识, 默认 实体表名
+ */
+public class SegmentIdGenerator implements IdentifierGenerator {
+    /**
+     * hibernate 属性中 {@link SegmentIdAllocator} 的 key
+     */
+    public static final String             ALLOCATOR = "segmentId.allocator";
+    protected           SegmentIdAllocator allocator;
+    protected           String             bizTag;
+
+
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+        Map<?, ?> settings = GeneratorConfig.settings(serviceRegistry);
+        allocator = (SegmentIdAllocator) settings.get(ALLOCATOR);
+        if (allocator == null) throw new MappingException("Not found " + ALLOCATOR);
+        bizTag = GeneratorConfig.get(params, null, "segmentId.tag", params.getProperty(PersistentIdentifierGenerator.TABLE));
+        if (bizTag == null) throw new MappingException("segmentId.tag required");
+    }
+
+
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object object) throws HibernateException {
+        return allocator.nextId(bizTag);
+    }
+}
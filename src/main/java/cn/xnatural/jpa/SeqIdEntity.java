@@ -0,0 +1,26 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.annotations.GenericGenerator;
+
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.MappedSuperclass;
+
+/**
+ * 序列表(hi/lo)生成 long 主键的实体. 插入可以走 jdbc batch
+ * @see SeqIdGenerator
+ */
+@MappedSuperclass
+public class SeqIdEntity extends BaseEntity {
+    @Id
+    @GeneratedValue(generator = "seqId")
+    @GenericGenerator(name = "seqId", strategy = "cn.xnatural.jpa.SeqIdGenerator")
+    private Long id;
+
+    public Long getId() { return id; }
+
+    public SeqIdEntity setId(Long id) {
+        this.id = id;
+        return this;
+    }
+}
@@ -0,0 +1,195 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.PersistentIdentifierGenerator;
+import org.hibernate.jdbc.AbstractReturningWork;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.sql.*;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 序列表(hi/lo) id 生成策略
+ * <p>
+ * 每次用一条 update 语句从序列表预留一段id(号段), 内存中无锁分配.
+ * 不像 IDENTITY 那样需要插入后立即取回主键, 所以批量插入可以走 jdbc batch.
+ * 号段大小根据消耗速度自适应: 消耗快则翻倍(不超过 maxIncrement), 消耗慢则减半(不小于 increment)
+ * <p>
+ * 配置(Repo 属性 或 @GenericGenerator parameters):
+ * seqId.table: 序列表名, 默认 id_seq
+ * seqId.name: 序列名, 默认 实体表名
+ * seqId.increment: 号段初始大小, 默认 1000
+ * seqId.maxIncrement: 号段最大大小, 默认 increment * 64
+ */
+public class SeqIdGenerator implements IdentifierGenerator {
+    protected static final Logger        log            = LoggerFactory.getLogger(SeqIdGenerator.class);
+    /**
+     * 号段消耗时间小于此值时, 号段翻倍
+     */
+    protected static final long          FAST_MS        = 10 * 1000L;
+    /**
+     * 号段消耗时间大于此值时, 号段减半
+     */
+    protected static final long          SLOW_MS        = 5 * 60 * 1000L;
+    protected              String        table;
+    protected              String        name;
+    /**
+     * 实体表名和主键列名: 序列初始化时取 max(主键) + 1
+     */
+    protected              String        targetTable;
+    protected              String        targetColumn;
+    protected              int           increment;
+    protected              int           maxIncrement;
+    /**
+     * 下次预留的号段大小
+     */
+    protected volatile     int           step;
+    /**
+     * 当前号段
+     */
+    protected volatile     Segment       segment        = new Segment(0, 0);
+    protected final        ReentrantLock lock           = new ReentrantLock();
+    protected volatile     boolean       tableChecked;
+
+
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+        Map<?, ?> settings = GeneratorConfig.settings(serviceRegistry);
+        targetTable = params.getProperty(PersistentIdentifierGenerator.TABLE);
+        targetColumn = params.getProperty(PersistentIdentifierGenerator.PK);
+        table = GeneratorConfig.get(params, settings, "seqId.table", "id_seq");
+        name = GeneratorConfig.get(params, settings, "seqId.name", targetTable);
+        if (name == null) throw new MappingException("seqId.name required");
+        increment = Integer.parseInt(GeneratorConfig.get(params, settings, "seqId.increment", "1000"));
+        if (increment < 1) throw new MappingException("seqId.increment must >= 1");
+        maxIncrement = Integer.parseInt(GeneratorConfig.get(params, settings, "seqId.maxIncrement", String.valueOf(increment * 64)));
+        step = increment;
+    }
+
+
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object object) throws HibernateException {
+        for (;;) {
+            Segment seg = segment;
+            long id = seg.cursor.getAndIncrement();
+            if (id < seg.end) return id;
+            lock.lock();
+            try {
+                if (segment == seg) segment = allocate(session);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * 在独立事务中从序列表预留一个号段
+     */
+    protected Segment allocate(SharedSessionContractImplementor session) {
+        Segment prev = segment;
+        if (prev.end > 0) { // 根据上一个号段的消耗时间调整号段大小
+            long spend = System.currentTimeMillis() - prev.createTime;
+            if (spend < FAST_MS && step < maxIncrement) step = Math.min(step * 2, maxIncrement);
+            else if (spend > SLOW_MS && step > increment) step = Math.max(step / 2, increment);
+        }
+        int size = step;
+        long end = session.getTransactionCoordinator().createIsolationDelegate().delegateWork(new AbstractReturningWork<Long>() {
+            @Override
+            public Long execute(Connection conn) throws SQLException {
+                if (!tableChecked) {
+                    createTableIfAbsent(conn);
+                    tableChecked = true;
+                }
+                try (PreparedStatement pst = conn.prepareStatement("update " + table + " set next_val = next_val + ? where name = ?")) {
+                    pst.setLong(1, size);
+                    pst.setString(2, name);
+                    if (pst.executeUpdate() == 0) {
+                        try {
+                            insertInitial(conn, size);
+                        } catch (SQLException ex) { // 其它节点已插入
+                            if (pst.executeUpdate() == 0) throw ex;
+                        }
+                    }
+                }
+                try (PreparedStatement pst = conn.prepareStatement("select next_val from " + table + " where name = ?")) {
+                    pst.setString(1, name);
+                    try (ResultSet rs = pst.executeQuery()) {
+                        if (!rs.next()) throw new SQLException("Sequence '" + name + "' not found in table " + table);
+                        return rs.getLong(1);
+                    }
+                }
+            }
+        }, true);
+        log.debug("Allocated id segment. name: {}, [{}, {})", name, end - size, end);
+        return new Segment(end - size, end);
+    }
+
+
+    /**
+     * 序列表不存在则创建
+     */
+    protected void createTableIfAbsent(Connection conn) throws SQLException {
+        DatabaseMetaData md = conn.getMetaData();
+        for (String t : new String[]{table, table.toUpperCase(), table.toLowerCase()}) {
+            try (ResultSet rs = md.getTables(conn.getCatalog(), null, t, null)) {
+                if (rs.next()) return;
+            }
+        }
+        try (Statement st = conn.createStatement()) {
+            st.execute("create table " + table + " (name varchar(100) not null primary key, next_val bigint not null)");
+            log.info("Created sequence table: {}", table);
+        }
+    }
+
+
+    /**
+     * 序列不存在: 从实体表的 max(主键) 开始, 并预留第一个号段
+     */
+    protected void insertInitial(Connection conn, int size) throws SQLException {
+        long start = 1;
+        if (targetTable != null && targetColumn != null) {
+            try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("select max(" + targetColumn + ") from " + targetTable)) {
+                if (rs.next()) start = rs.getLong(1) + 1;
+            } catch (SQLException ex) {
+                log.warn("Query max id error. table: " + targetTable + ", " + ex.getMessage());
+            }
+        }
+        try (PreparedStatement pst = conn.prepareStatement("insert into " + table + " (name, next_val) values (?, ?)")) {
+            pst.setString(1, name);
+            pst.setLong(2, start + size);
+            pst.executeUpdate();
+        }
+    }
+
+
+    /**
+     * 当前号段大小
+     */
+    public int getStep() { return step; }
+
+
+    /**
+     * 号段: [start, end)
+     */
+    protected static class Segment {
+        final AtomicLong cursor;
+        final long       end;
+        final long       createTime = System.currentTimeMillis();
+
+        Segment(long start, long end) {
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.metamodel.spi.MetamodelImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * 分片 Repo: 多个 {@link Repo} 组成, 每个 {@link Repo} 是一个分片
+ * 1. saveOrUpdate, byId, delete 按实体的分片key({@link #shardKey(Class, Function)}) 路由到一个分片
+ * 2. rows, count, paging 在所有分片上并行执行, 合并结果: 列表拼接, 计数求和, 分页按排序多路归并
+ * 分片算法: floorMod(分片key.hashCode(), 分片数)
+ * 各分片的 SnowFlake 节点id(datacenterId, machineId)必须不同, 否则不同分片可能生成相同的id. 创建时检查
+ */
+public class ShardedRepo implements AutoCloseable {
+    /**
+     * 分片
+     */
+    protected final List<Repo>                                shards;
+    /**
+     * 实体类型 -> 分片key函数
+     */
+    protected final Map<Class<?>, Function<Object, Object>>   keyFns = new ConcurrentHashMap<>();
+    /**
+     * 并行查询的线程池
+     */
+    protected final ExecutorService                           exec;
+    /**
+     * 线程池是否为自己创建: 关闭时一起关闭
+     */
+    protected final boolean                                   ownExec;
+
+
+    /**
+     * 线程池大小为分片数, 队列满时在调用线程执行
+     * @param shards 分片
+     */
+    public ShardedRepo(List<Repo> shards) { this(shards, null); }
+
+
+    /**
+     * @param shards 分片
+     * @param exec 并行查询的线程池. null: 默认有界线程池
+     */
+    public ShardedRepo(List<Repo> shards, ExecutorService exec) {
+        if (shards == null || shards.isEmpty()) throw new IllegalArgumentException("Param shards required");
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        checkWorkerIds();
+        this.ownExec = exec == null;
+        if (exec == null) {
+            AtomicInteger i = new AtomicInteger();
+            exec = new ThreadPoolExecutor(shards.size(), shards.size(), 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(shards.size() * 64), r -> {
+                Thread t = new Thread(r, "shard-" + i.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+            ((ThreadPoolExecutor) exec).allowCoreThreadTimeOut(true);
+        }
+        this.exec = exec;
+    }
+
+
+    /**
+     * 检查各分片 {@link SnowFlakeIdGenerator} 的节点id不重复
+     */
+    protected void checkWorkerIds() {
+        Map<Long, Integer> used = new HashMap<>(); // 节点id -> 分片下标
+        for (int i = 0; i < shards.size(); i++) {
+            SessionFactory sf = shards.get(i).getSessionFactory();
+            if (sf == null) throw new IllegalArgumentException("Shard " + i + " not inited");
+            Set<Long> nodes = new HashSet<>();
+            for (EntityPersister persister : ((MetamodelImplementor) sf.getMetamodel()).entityPersisters().values()) {
+                if (!(persister.getIdentifierGenerator() instanceof SnowFlakeIdGenerator)) continue;
+                SnowFlakeIdGenerator generator = (SnowFlakeIdGenerator) persister.getIdentifierGenerator();
+                nodes.add(generator.getDatacenterId() << 5 | generator.getMachineId());
+            }
+            for (Long node : nodes) {
+                Integer other = used.putIfAbsent(node, i);
+                if (other != null) {
+                    throw new IllegalArgumentException("Shard " + other + " and " + i + " use the same SnowFlake worker id " + node + ". Set distinct snowFlake.datacenterId/machineId for each shard");
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 设置实体的分片key函数
+     * @param eType 实体类型
+     * @param keyFn 从实体取分片key
+     * @return {@link ShardedRepo}
+     */
+    public <E extends IEntity> ShardedRepo shardKey(Class<E> eType, Function<E, Object> keyFn) {
+        if (eType == null) throw new IllegalArgumentException("Param eType required");
+        if (keyFn == null) throw new IllegalArgumentException("Param keyFn required");
+        keyFns.put(eType, o -> keyFn.apply(eType.cast(o)));
+        return this;
+    }
+
+
+    /**
+     * 分片key对应的分片下标
+     * @param key 分片key
+     * @return 分片下标
+     */
+    public int shardIndex(Object key) {
+        if (key == null) throw new IllegalArgumentException("Param key required");
+        return Math.floorMod(key.hashCode(), shards.size());
+    }
+
+
+    /**
+     * 分片key对应的分片
+     * @param key 分片key
+     * @return {@link Repo}
+     */
+    public Repo shard(Object key) { return shards.get(shardIndex(key)); }
+
+
+    /**
+     * 实体所在的分片
+     */
+    protected Repo shardOf(IEntity entity) {
+        if (entity == null) throw new IllegalArgumentException("Param entity required");
+        Function<Object, Object> fn = null;
+        for (Class<?> c = entity.getClass(); c != null && fn == null; c = c.getSuperclass()) fn = keyFns.get(c);
+        if (fn == null) throw new RuntimeException("Not found shard key function for " + entity.getClass().getName());
+        return shard(fn.apply(entity));
+    }
+
+
+    /**
+     * 保存/更新实体到所在的分片
+     * @param entity 实体
+     * @return 实体{@link E}
+     */
+    public <E extends IEntity> E saveOrUpdate(E entity) { return shardOf(entity).saveOrUpdate(entity); }
+
+
+    /**
+     * 删除实体
+     * @param entity 实体
+     */
+    public <E extends IEntity> void delete(E entity) { shardOf(entity).delete(entity); }
+
+
+    /**
+     * 根据分片key和id删除
+     * @param eType 实体类型
+     * @param shardKey 分片key
+     * @param id 实体id
+     * @return true: 删除成功
+     */
+    public <E extends IEntity> boolean delete(Class<E> eType, Object shardKey, Serializable id) {
+        return shard(shardKey).delete(eType, id);
+    }
+
+
+    /**
+     * 根据分片key和id查询实体
+     * @param eType 实体类型
+     * @param shardKey 分片key
+     * @param id 实体id
+     * @return 实体
+     */
+    public <E extends IEntity> E byId(Class<E> eType, Object shardKey, Serializable id) {
+        return shard(shardKey).byId(eType, id);
+    }
+
+
+    /**
+     * 不知道分片key时, 在所有分片上查询实体
+     * @param eType 实体类型
+     * @param id 实体id
+     * @return 实体
+     */
+    public <E extends IEntity> E byId(Class<E> eType, Serializable id) {
+        for (E e : scatter(repo -> repo.byId(eType, id))) {
+            if (e != null) return e;
+        }
+        return null;
+    }
+
+
+    /**
+     * 在所有分片上查询, 结果拼接
+     * @param eType 实体类型
+     * @param spec 条件
+     * @return 多个实体
+     */
+    public <E extends IEntity> List<E> rows(Class<E> eType, CriteriaSpec<E, E> spec) {
+        List<E> result = new ArrayList<>();
+        for (List<E> ls : scatter(repo -> repo.rows(eType, spec))) result.addAll(ls);
+        return result;
+    }
+
+
+    /**
+     * 在所有分片上执行sql查询, 结果拼接
+     * @param sql sql
+     * @param wrap 返回结果包装的类型
+     * @param params sql参数
+     * @return 多条记录
+     */
+    public <R> List<R> rows(String sql, Class<R> wrap, Object...params) {
+        List<R> result = new ArrayList<>();
+        for (List<R> ls : scatter(repo -> repo.rows(sql, wrap, params))) result.addAll(ls);
+        return result;
+    }
+
+
+    /**
+     * 所有分片的总条数
+     * @param eType 实体类型
+     * @param spec 条件
+     * @return 条数
+     */
+    public <E extends IEntity> long count(Class<E> eType, CriteriaSpec<E, Long> spec) {
+        long total = 0;
+        for (Long c : scatter(repo -> repo.count(eType, spec))) total += c;
+        return total;
+    }
+
+
+    public <E extends IEntity> long count(Class<E> eType) { return count(eType, null); }
+
+
+    /**
+     * 跨分片分页查询
+     * 每个分片取前 page * limit 条, 按 order 多路归并后取第 page 页; 总条数为各分片之和
+     * @param eType 实体类型
+     * @param page 第几页 >=1
+     * @param limit 每页大小 >=1
+     * @param listSpec 条件. 必须设置和 order 一致的 orderBy
+     * @param order 排序
+     * @return {@link Page}
+     */
+    public <E extends IEntity> Page<E> paging(Class<E> eType, Integer page, Integer limit, CriteriaSpec<E, E> listSpec, Comparator<? super E> order) {
+        if (page == null || page < 1) throw new IllegalArgumentException("Param page >=1");
+        if (limit == null || limit < 1) throw new IllegalArgumentException("Param limit >=1");
+        if (order == null) throw new IllegalArgumentException("Param order required");
+        return merge(scatter(repo -> repo.paging(eType, 1, page * limit, listSpec)), page, limit, order);
+    }
+
+
+    /**
+     * 跨分片sql分页查询
+     * 每个分片取前 page * limit 条, 按 order 多路归并后取第 page 页; 总条数为各分片之和
+     * @param sql sql. 必须有和 order 一致的 order by
+     * @param page 第几页 >=1
+     * @param limit 每页大小 >=1
+     * @param order 排序
+     * @param wrap 返回结果包装的类型
+     * @param params sql参数
+     * @return {@link Page}
+     */
+    public <R> Page<R> paging(String sql, Integer page, Integer limit, Comparator<? super R> order, Class<R> wrap, Object...params) {
+        if (page == null || page < 1) throw new IllegalArgumentException("Param page >=1");
+        if (limit == null || limit < 1) throw new IllegalArgumentException("Param limit >=1");
+        if (order == null) throw new IllegalArgumentException("Param order required");
+        return merge(scatter(repo -> repo.paging(sql, 1, page * limit, wrap, params)), page, limit, order);
+    }
+
+
+    /**
+     * 多路归并各分片的有序结果
+     */
+    protected <T> Page<T> merge(List<Page<T>> pages, int page, int limit, Comparator<? super T> order) {
+        List<Iterator<T>> its = new ArrayList<>(pages.size());
+        PriorityQueue<Map.Entry<T, Integer>> heap = new PriorityQueue<>(Math.max(1, pages.size()), (a, b) -> order.compare(a.getKey(), b.getKey()));
+        long total = 0;
+        for (Page<T> p : pages) {
+            total += p.getTotalRow();
+            Iterator<T> it = p.getList().iterator();
+            if (it.hasNext()) heap.add(new AbstractMap.SimpleEntry<>(it.next(), its.size()));
+            its.add(it);
+        }
+        int skip = (page - 1) * limit;
+        List<T> ls = new ArrayList<>(limit);
+        while (!heap.isEmpty() && ls.size() < limit) {
+            Map.Entry<T, Integer> e = heap.poll();
+            if (skip > 0) skip--;
+            else ls.add(e.getKey());
+            Iterator<T> it = its.get(e.getValue());
+            if (it.hasNext()) heap.add(new AbstractMap.SimpleEntry<>(it.next(), e.getValue()));
+        }
+        return new Page<T>().setPage(page).setPageSize(limit).setTotalRow(total).setList(ls);
+    }
+
+
+    /**
+     * 在所有分片上并行执行
+     * @param fn 函数
+     * @return 每个分片的结果, 顺序同分片
+     */
+    public <T> List<T> scatter(Function<Repo, T> fn) {
+        if (shards.size() == 1) return Collections.singletonList(fn.apply(shards.get(0)));
+        List<CompletableFuture<T>> fs = new ArrayList<>(shards.size());
+        for (Repo repo : shards) fs.add(CompletableFuture.supplyAsync(() -> fn.apply(repo), exec));
+        List<T> result = new ArrayList<>(fs.size());
+        try {
+            for (CompletableFuture<T> f : fs) result.add(f.join());
+        } catch (CompletionException ex) {
+            for (CompletableFuture<T> f : fs) f.cancel(false);
+            if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            throw ex;
+        }
+        return result;
+    }
+
+
+    public List<Repo> getShards() { return shards; }
+
+
+    /**
+     * 关闭所有分片(和默认线程池)
+     */
+    @Override
+    public void close() {
+        if (ownExec) exec.shutdown();
+        for (Repo repo : shards) repo.close();
+    }
+}
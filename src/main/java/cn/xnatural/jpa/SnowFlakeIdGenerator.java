@@ -1,5 +1,18 @@
 package cn.xnatural.jpa;
 
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * 基于 SnowFlake 的id 生成策略
  * <p>
@@ -7,8 +20,19 @@ package cn.xnatural.jpa;
  * 41位时间戳部分:  这个是毫秒级的时间，一般实现上不会存储当前的时间戳，而是时间戳的差值（当前时间-固定的开始时间），这样可以使产生的ID从更小值开始；41位的时间戳可以使用69年，(1L << 41) / (1000L * 60 * 60 * 24 * 365) = 69年；
  * 10位节点部分:    Twitter实现中使用前5位作为数据中心标识，后5位作为机器标识，可以部署1024个节点；
  * 12位序列号部分:  支持同一毫秒内同一个节点可以生成4096个ID;
+ * <p>
+ * 时间戳和序列号打包在一个 {@link AtomicLong} 中, 用 CAS 无锁生成.
+ * 同一毫秒序列号用完时直接借用下一毫秒(序列号溢出进位到时间戳), 不自旋等待;
+ * 时钟回拨不超过 maxBackwardMs 时继续在上次的时间戳上递增; 最多借用到当前时钟之后 maxBorrowMs 毫秒, 超过时等待时钟追上
+ * <p>
+ * 配置(Repo 属性 或 @GenericGenerator parameters):
+ * snowFlake.datacenterId: 数据中心id 0-31, 默认 0
+ * snowFlake.machineId: 机器id 0-31, 默认 0
+ * snowFlake.maxBackwardMs: 容忍的时钟回拨毫秒数, 默认 1000
+ * snowFlake.maxBorrowMs: 最多借用当前时钟之后多少毫秒, 默认 1000
+ * snowFlake.workerIdLease: {@link WorkerIdLease}, 有时节点id取租到的 workerId, 租约无效时不发号
  */
-public class SnowFlakeIdGenerator {
+public class SnowFlakeIdGenerator implements IdentifierGenerator {
     // 起始的时间戳 2018-10-18 10:26:00
     private final static long START_STMP         = 1538706388336L;
     // 每一部分占用的位数，就三个
@@ -25,11 +49,51 @@ public class SnowFlakeIdGenerator {
     private final static long TIMESTMP_LEFT      = DATACENTER_LEFT + DATACENTER_BIT;
     private              long datacenterId; // 数据中心
     private              long machineId; // 机器标识
-    private              long sequence           = 0L; // 序列号
-    private              long lastStmp           = -1L;// 上一次时间戳
+    private              long node; // 节点部分: 数据中心部分 | 机器标识部分
+    private              WorkerIdLease lease; // 节点id租约
+    private              long maxBackwardMs      = 1000; // 容忍的时钟回拨
+    private              long maxBorrowMs        = 1000; // 最多借用当前时钟之后的毫秒数
+    // 状态: 上一次时间戳(相对 START_STMP) << SEQUENCE_BIT | 序列号
+    private final AtomicLong state               = new AtomicLong();
+    // 观察到的最大时钟(相对 START_STMP), 用于区分时钟回拨和借用未来毫秒
+    private final AtomicLong maxClock            = new AtomicLong();
+
+
+    /**
+     * 给 hibernate 用: 节点id 由 {@link #configure(Type, Properties, ServiceRegistry)} 设置
+     */
+    public SnowFlakeIdGenerator() { this(0, 0); }
+
+
+    public SnowFlakeIdGenerator(long datacenterId, long machineId) {
+        setNode(datacenterId, machineId);
+    }
+
+
+    /**
+     * @param lease 节点id租约: 每次生成id时取有效的 workerId
+     */
+    public SnowFlakeIdGenerator(WorkerIdLease lease) {
+        if (lease == null) throw new IllegalArgumentException("Param lease required");
+        this.lease = lease;
+    }
 
 
-    SnowFlakeIdGenerator(long datacenterId, long machineId) {
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+        Map<?, ?> settings = GeneratorConfig.settings(serviceRegistry);
+        Object lease = settings.get("snowFlake.workerIdLease");
+        if (lease instanceof WorkerIdLease) this.lease = (WorkerIdLease) lease;
+        setNode(
+                Long.parseLong(GeneratorConfig.get(params, settings, "snowFlake.datacenterId", "0")),
+                Long.parseLong(GeneratorConfig.get(params, settings, "snowFlake.machineId", "0"))
+        );
+        maxBackwardMs = Long.parseLong(GeneratorConfig.get(params, settings, "snowFlake.maxBackwardMs", String.valueOf(maxBackwardMs)));
+        maxBorrowMs = Long.parseLong(GeneratorConfig.get(params, settings, "snowFlake.maxBorrowMs", String.valueOf(maxBorrowMs)));
+    }
+
+
+    private void setNode(long datacenterId, long machineId) {
         if (datacenterId > MAX_DATACENTER_NUM || datacenterId < 0) {
             throw new IllegalArgumentException("datacenterId can't be greater than " + MAX_DATACENTER_NUM + " or less than 0");
         }
@@ -38,51 +102,105 @@ public class SnowFlakeIdGenerator {
         }
         this.datacenterId = datacenterId;
         this.machineId = machineId;
+        this.node = datacenterId << DATACENTER_LEFT | machineId << MACHINE_LEFT;
+    }
+
+
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object object) throws HibernateException {
+        return nextId();
+    }
+
+
+    /**
+     * 产生下一个ID
+     */
+    public long nextId() {
+        long node = node();
+        return toId(reserve(1), node);
     }
 
 
-    //产生下一个ID
-    synchronized long nextId() {
-        long currStmp = System.currentTimeMillis();
-        if (currStmp < lastStmp) {
-            throw new RuntimeException("Clock moved backwards.  Refusing to generate id");
+    /**
+     * 批量产生ID: 一次 CAS 预留 n 个连续序号
+     * @param n 个数 >=1
+     * @return 递增的id
+     */
+    public long[] nextIds(int n) {
+        if (n < 1) throw new IllegalArgumentException("Param n >=1");
+        // 一次最多 maxBorrowMs + 1 毫秒的序号
+        if (n > (maxBorrowMs + 1) << SEQUENCE_BIT) throw new IllegalArgumentException("Param n <= " + ((maxBorrowMs + 1) << SEQUENCE_BIT));
+        long node = node();
+        long last = reserve(n);
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = toId(last - n + 1 + i, node);
         }
+        return ids;
+    }
 
-        if (currStmp == lastStmp) {
-            //if条件里表示当前调用和上一次调用落在了相同毫秒内，只能通过第三部分，序列号自增来判断为唯一，所以+1.
-            sequence = (sequence + 1) & MAX_SEQUENCE;
-            //同一毫秒的序列数已经达到最大，只能等待下一个毫秒
-            if (sequence == 0L) {
-                currStmp = getNextMill();
+
+    /**
+     * 预留 n 个序号
+     * @return 预留的最后一个状态值
+     */
+    private long reserve(int n) {
+        for (;;) {
+            long now = clock();
+            long cur = state.get();
+            long last = cur >>> SEQUENCE_BIT;
+            long next;
+            if (now > last) {
+                //不同毫秒内，序列号置为0
+                next = (now << SEQUENCE_BIT) + n - 1;
+            } else {
+                //同一毫秒(或时钟回拨, 或已借用了未来毫秒): 序列号自增, 溢出时进位到下一毫秒
+                next = cur + n;
+            }
+            if ((next >>> SEQUENCE_BIT) - now > maxBorrowMs) {
+                // 借用太多未来毫秒, 等待时钟追上
+                LockSupport.parkNanos(100_000L);
+                continue;
             }
-        } else {
-            //不同毫秒内，序列号置为0
-            //执行到这个分支的前提是currTimestamp > lastTimestamp，说明本次调用跟上次调用对比，已经不再同一个毫秒内了，这个时候序号可以重新回置0了。
-            sequence = 0L;
+            if (state.compareAndSet(cur, next)) return next;
         }
-
-        lastStmp = currStmp;
-        //就是用相对毫秒数、机器ID和自增序号拼接
-        //时间戳部分 | 数据中心部分 | 机器标识部分 | 序列号部分
-        return (currStmp - START_STMP) << TIMESTMP_LEFT | datacenterId << DATACENTER_LEFT  | machineId << MACHINE_LEFT | sequence;
     }
 
 
-    private long getNextMill() {
-        long mill = System.currentTimeMillis();
-        while (mill <= lastStmp) {
-            mill = System.currentTimeMillis();
+    /**
+     * 当前时钟(相对 START_STMP)
+     */
+    private long clock() {
+        long now = System.currentTimeMillis() - START_STMP;
+        long max = maxClock.get();
+        if (now > max) maxClock.compareAndSet(max, now);
+        else if (max - now > maxBackwardMs) {
+            throw new IllegalStateException("Clock moved backwards " + (max - now) + "ms. Refusing to generate id");
         }
-        return mill;
+        return now;
     }
 
 
+    /**
+     * 节点部分. 有租约时取有效的 workerId(租约无效时抛错)
+     */
+    private long node() {
+        return lease == null ? node : (long) lease.validWorkerId() << MACHINE_LEFT;
+    }
+
 
-    public static void main(String[] args) {
-        // System.out.println(System.currentTimeMillis());
-        SnowFlakeIdGenerator idGenerator = new SnowFlakeIdGenerator(1, 1);
-        for (int i = 0; i < 10; i++) {
-            System.out.println(idGenerator.nextId());
-        }
+    /**
+     * 状态值转换成id
+     * 时间戳部分 | 数据中心部分 | 机器标识部分 | 序列号部分
+     */
+    private long toId(long st, long node) {
+        return (st >>> SEQUENCE_BIT) << TIMESTMP_LEFT | node | (st & MAX_SEQUENCE);
     }
+
+
+    public long getDatacenterId() { return lease == null ? datacenterId : lease.getDatacenterId(); }
+
+    public long getMachineId() { return lease == null ? machineId : lease.getMachineId(); }
+
+    public WorkerIdLease getLease() { return lease; }
 }
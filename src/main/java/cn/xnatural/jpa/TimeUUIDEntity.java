@@ -0,0 +1,30 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.annotations.GenericGenerator;
+
+import javax.persistence.Column;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.MappedSuperclass;
+
+
+/**
+ * 时间有序 UUID 为主键的实体. 主键按时间递增, 插入基本是追加, 不会打散聚簇索引
+ */
+@MappedSuperclass
+public class TimeUUIDEntity extends BaseEntity {
+    @Id
+    @GeneratedValue(generator = "timeUuid")
+    @GenericGenerator(name = "timeUuid", strategy = "cn.xnatural.jpa.TimeUUIDGenerator")
+    @Column(length = 32)
+    private String id;
+
+
+    public String getId() { return id; }
+
+
+    public TimeUUIDEntity setId(String id) {
+        this.id = id;
+        return this;
+    }
+}
@@ -0,0 +1,79 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.HibernateException;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+
+import java.io.Serializable;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 时间有序的无符号uuid生产器(UUIDv7 布局)
+ * <p>
+ * 48位毫秒时间戳 | 4位版本(7) | 12位单调计数 | 2位变体 | 62位随机数
+ * 同一毫秒内计数递增, 计数用完时进位到下一毫秒, 保证同一进程内严格递增.
+ * 随机部分用 {@link ThreadLocalRandom}, 直接写成32位16进制字符
+ */
+public class TimeUUIDGenerator implements IdentifierGenerator {
+    private static final char[]     HEX   = "0123456789abcdef".toCharArray();
+    // 状态: 毫秒时间戳 << 12 | 计数
+    private static final AtomicLong state = new AtomicLong();
+
+
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object object) throws HibernateException {
+        return nextId();
+    }
+
+
+    /**
+     * 产生下一个id: 32位16进制字符串
+     */
+    public static String nextId() {
+        long msb = nextMsb();
+        long lsb = nextLsb();
+        char[] cs = new char[32];
+        for (int i = 15; i >= 0; i--) {
+            cs[i] = HEX[(int) (msb & 0xF)];
+            msb >>>= 4;
+        }
+        for (int i = 31; i >= 16; i--) {
+            cs[i] = HEX[(int) (lsb & 0xF)];
+            lsb >>>= 4;
+        }
+        return new String(cs);
+    }
+
+
+    /**
+     * 产生下一个 {@link UUID}
+     */
+    public static UUID nextUUID() {
+        return new UUID(nextMsb(), nextLsb());
+    }
+
+
+    /**
+     * 高64位: 时间戳 | 版本 | 计数
+     */
+    static long nextMsb() {
+        long now = System.currentTimeMillis();
+        long cur, next;
+        do {
+            cur = state.get();
+            // 时钟回拨或同一毫秒: 在上次的基础上递增
+            next = (cur >>> 12) < now ? now << 12 : cur + 1;
+        } while (!state.compareAndSet(cur, next));
+        return (next >>> 12) << 16 | 0x7000L | (next & 0xFFF);
+    }
+
+
+    /**
+     * 低64位: 变体 | 随机数
+     */
+    static long nextLsb() {
+        return ThreadLocalRandom.current().nextLong() & 0x3FFFFFFFFFFFFFFFL | 0x8000000000000000L;
+    }
+}
@@ -0,0 +1,224 @@
+package cn.xnatural.jpa;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 工作单元: 一个 session, 一个连接, 一个事务 {@link Repo#session(Function)}, {@link Repo#begin()}
+ * 可作为参数显式传递, 可跨线程: {@link #call(Supplier)}, {@link #wrap(Function)} 在任意线程中加入此事务.
+ * 同一时间只有一个线程使用(其它线程等待): 各阶段串行执行.
+ * 注意: 阶段内不能等待同一工作单元的另一个阶段(例: call 中 join 另一个 wrap 的 future), 否则等待锁超时报错 {@link Repo#uowLockTimeout}
+ */
+public class UnitOfWork implements AutoCloseable {
+    protected static final Logger        log  = LoggerFactory.getLogger(UnitOfWork.class);
+    protected final        Repo          repo;
+    protected final        Session       session;
+    /**
+     * 自己开启的事务. null: 使用外层事务(由外层结束)
+     */
+    protected final        Transaction   tx;
+    /**
+     * 不用 synchronized: 虚拟线程在锁上等待时不固定载体线程
+     */
+    protected final        ReentrantLock lock = new ReentrantLock();
+    protected volatile     boolean       ended;
+
+
+    protected UnitOfWork(Repo repo, Session session, Transaction tx) {
+        this.repo = repo;
+        this.session = session;
+        this.tx = tx;
+    }
+
+
+    /**
+     * 在当前线程中执行: 执行期间当前线程的 Repo 操作都加入此事务
+     * @param fn 函数
+     * @param <T> 类型
+     */
+    public <T> T call(Supplier<T> fn) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        lock();
+        try {
+            if (ended) throw new RuntimeException("UnitOfWork already ended");
+            UnitOfWork prev = repo.unitOfWork.get();
+            if (prev == this) return fn.get();
+            boolean prevFlag = repo.txFlag.get();
+            repo.unitOfWork.set(this); repo.txFlag.set(true);
+            try {
+                return fn.get();
+            } finally {
+                if (prev == null) repo.unitOfWork.remove();
+                else repo.unitOfWork.set(prev);
+                repo.txFlag.set(prevFlag);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * 包装函数: 在任意线程中执行时加入此事务 {@link #call(Supplier)}
+     * 例: CompletableFuture.supplyAsync(uow.wrap(() -> repo.byId(...)), exec).thenApply(uow.wrap(e -> ...))
+     */
+    public <T> Supplier<T> wrap(Supplier<T> fn) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        return () -> call(fn);
+    }
+
+
+    /**
+     * 包装函数 {@link #wrap(Supplier)}
+     */
+    public <A, T> Function<A, T> wrap(Function<A, T> fn) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        return a -> call(() -> fn.apply(a));
+    }
+
+
+    /**
+     * 包装函数 {@link #wrap(Supplier)}
+     */
+    public Runnable wrap(Runnable fn) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        return () -> call(() -> { fn.run(); return null; });
+    }
+
+
+    /**
+     * 提交并关闭. 已标记只回滚时回滚
+     */
+    public void commit() { end(true); }
+
+
+    /**
+     * 回滚并关闭
+     */
+    public void rollback() { end(false); }
+
+
+    /**
+     * 没有结束时回滚
+     */
+    @Override
+    public void close() { if (!ended) end(false); }
+
+
+    protected void end(boolean commit) {
+        if (tx == null) throw new RuntimeException("UnitOfWork is part of an outer transaction");
+        lock();
+        try {
+            if (ended) throw new RuntimeException("UnitOfWork already ended");
+            ended = true;
+            try {
+                if (commit && !tx.getRollbackOnly()) {
+                    tx.commit();
+                    repo.markWrite();
+                } else if (tx.getStatus().canRollback()) tx.rollback();
+            } catch (RuntimeException ex) {
+                if (tx.getStatus().canRollback()) tx.rollback();
+                throw ex;
+            } finally {
+                session.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * 获取锁: 超时报错. 持有锁的线程在等待另一个要获取此锁的线程时, 不会一直死锁
+     */
+    protected void lock() {
+        try {
+            if (lock.tryLock(repo.uowLockTimeout, TimeUnit.MILLISECONDS)) return;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for UnitOfWork", ex);
+        }
+        throw new RuntimeException("UnitOfWork is in use by another thread over " + repo.uowLockTimeout + "ms. A stage must not wait for another stage of the same UnitOfWork");
+    }
+
+
+    /**
+     * 嵌套事务: 基于 savepoint
+     * 开始前 flush, 结束时 flush. 失败时回滚到 savepoint 并清空 session(实体都变为游离状态), 不影响外层事务
+     * @param fn 数据库操作函数
+     * @param <T> 类型
+     */
+    public <T> T trans(Function<Session, T> fn) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        return call(() -> nested(fn));
+    }
+
+
+    protected <T> T nested(Function<Session, T> fn) {
+        session.flush();
+        Savepoint sp = session.doReturningWork(Connection::setSavepoint);
+        try {
+            T r = fn.apply(session);
+            session.flush();
+            session.doWork(conn -> {
+                try {
+                    conn.releaseSavepoint(sp);
+                } catch (SQLException ex) { // 驱动不支持时忽略: 事务结束时释放
+                    log.debug("Release savepoint error: {}", ex.getMessage());
+                }
+            });
+            return r;
+        } catch (Throwable ex) { // Error 或 偷偷抛出的受检异常 也回滚到 savepoint
+            try {
+                session.doWork(conn -> conn.rollback(sp));
+            } catch (RuntimeException rbEx) { // 不覆盖原异常
+                ex.addSuppressed(rbEx);
+            }
+            session.clear(); // 内存中的实体状态可能已和数据库不一致
+            throw ex;
+        }
+    }
+
+
+    /**
+     * 标记为只回滚: 工作单元结束时回滚(在 trans 中时, 回滚外层事务)
+     */
+    public void setRollbackOnly() { session.getTransaction().markRollbackOnly(); }
+
+
+    /**
+     * 是否已标记为只回滚
+     */
+    public boolean isRollbackOnly() { return session.getTransaction().getRollbackOnly(); }
+
+
+    /**
+     * 工作单元的 session
+     */
+    public Session getSession() { return session; }
+
+
+    public Repo getRepo() { return repo; }
+
+
+    /**
+     * 是否已结束(提交/回滚)
+     */
+    public boolean isEnded() { return ended; }
+
+
+    @Override
+    public String toString() {
+        return "UnitOfWork@" + Integer.toHexString(hashCode()) + "{ended=" + ended + '}';
+    }
+}
@@ -0,0 +1,239 @@
+package cn.xnatural.jpa;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SnowFlake 节点id(workerId)租约
+ * <p>
+ * 从租约表中租用一个唯一的 workerId(0-1023: 高5位为 datacenterId, 低5位为 machineId),
+ * 后台定时续约; 节点宕机不续约则租约过期, 其它节点可回收. 关闭时释放租约
+ * 租约丢失(被其它节点回收)或超过有效期没续约成功时, {@link #validWorkerId()} 抛错, 生成器停止发号, 直到重新租到 workerId
+ * <p>
+ * 租约表结构: worker_id int 主键, owner varchar(128), expire_at bigint(毫秒时间戳), update_time timestamp.
+ * 不存在时自动创建. 过期判断用各节点本地时钟, ttl 应远大于节点间时钟误差
+ */
+public class WorkerIdLease implements AutoCloseable {
+    protected static final Logger                   log          = LoggerFactory.getLogger(WorkerIdLease.class);
+    /**
+     * 最大 workerId: 5位 datacenterId + 5位 machineId
+     */
+    public static final    int                      MAX_WORKER_ID = 1023;
+    protected final        DataSource               dataSource;
+    /**
+     * 租约表名
+     */
+    protected final        String                   table;
+    /**
+     * 租约时长(毫秒). 每 ttl/3 续约一次
+     */
+    protected final        long                     ttl;
+    /**
+     * 租约持有者标识
+     */
+    protected final        String                   owner;
+    protected volatile     int                      workerId     = -1;
+    /**
+     * 租约有效期(本地毫秒时间戳): 最近一次成功租用/续约前的时间 + ttl
+     */
+    protected volatile     long                     validUntil;
+    protected              ScheduledExecutorService heartbeat;
+
+
+    /**
+     * @param dataSource 数据源
+     * @param table 租约表名
+     * @param ttl 租约时长(毫秒)
+     */
+    public WorkerIdLease(DataSource dataSource, String table, long ttl) {
+        if (dataSource == null) throw new IllegalArgumentException("Param dataSource required");
+        if (table == null || table.isEmpty()) throw new IllegalArgumentException("Param table required");
+        if (ttl < 3000) throw new IllegalArgumentException("Param ttl >= 3000");
+        this.dataSource = dataSource;
+        this.table = table;
+        this.ttl = ttl;
+        String name = ManagementFactory.getRuntimeMXBean().getName(); // pid@host
+        this.owner = (name.length() > 90 ? name.substring(0, 90) : name) + "/" + UUID.randomUUID().toString().replace("-", "");
+    }
+
+
+    public WorkerIdLease(DataSource dataSource) { this(dataSource, "worker_lease", 60 * 1000L); }
+
+
+    /**
+     * 租用一个 workerId 并开始定时续约
+     * @return workerId
+     */
+    public int acquire() {
+        if (workerId >= 0) return workerId;
+        long now = System.currentTimeMillis();
+        int id = -1;
+        try (Connection conn = dataSource.getConnection()) {
+            createTableIfAbsent(conn);
+            for (int i = 0; i < 3 && id < 0; i++) { // 和其它节点竞争失败时重试
+                id = tryAcquire(conn);
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException("Acquire worker id error", ex);
+        }
+        if (id < 0) throw new RuntimeException("No free worker id in table " + table);
+        validUntil = now + ttl;
+        workerId = id;
+        log.info("Leased worker id: {}, owner: {}", workerId, owner);
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "worker-lease-" + workerId);
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat.scheduleWithFixedDelay(this::renew, ttl / 3, ttl / 3, TimeUnit.MILLISECONDS);
+        return workerId;
+    }
+
+
+    /**
+     * 选一个空闲或过期的 workerId 占用
+     * @return -1: 竞争失败
+     */
+    protected int tryAcquire(Connection conn) throws SQLException {
+        Map<Integer, Long> leases = new HashMap<>();
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("select worker_id, expire_at from " + table)) {
+            while (rs.next()) leases.put(rs.getInt(1), rs.getLong(2));
+        }
+        long now = System.currentTimeMillis();
+        // 1. 没用过的 workerId
+        for (int id = 0; id <= MAX_WORKER_ID; id++) {
+            if (leases.containsKey(id)) continue;
+            try (PreparedStatement pst = conn.prepareStatement("insert into " + table + " (worker_id, owner, expire_at, update_time) values (?, ?, ?, ?)")) {
+                pst.setInt(1, id);
+                pst.setString(2, owner);
+                pst.setLong(3, now + ttl);
+                pst.setTimestamp(4, new Timestamp(now));
+                pst.executeUpdate();
+                return id;
+            } catch (SQLException ex) { // 被其它节点抢先
+                log.debug("Insert worker id {} error: {}", id, ex.getMessage());
+                return -1;
+            }
+        }
+        // 2. 回收过期的租约: expire_at 不变才能更新成功
+        for (Map.Entry<Integer, Long> e : leases.entrySet()) {
+            if (e.getValue() >= now) continue;
+            try (PreparedStatement pst = conn.prepareStatement("update " + table + " set owner = ?, expire_at = ?, update_time = ? where worker_id = ? and expire_at = ?")) {
+                pst.setString(1, owner);
+                pst.setLong(2, now + ttl);
+                pst.setTimestamp(3, new Timestamp(now));
+                pst.setInt(4, e.getKey());
+                pst.setLong(5, e.getValue());
+                if (pst.executeUpdate() == 1) return e.getKey();
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * 续约. 租约已被回收(例: 长时间 GC 停顿)且还没被别的节点占用时重新占用;
+     * 已被别的节点占用时停止发号, 并重新租用一个空闲的 workerId
+     */
+    protected void renew() {
+        long now = System.currentTimeMillis();
+        try (Connection conn = dataSource.getConnection()) {
+            int id = workerId;
+            if (id >= 0) {
+                try (PreparedStatement pst = conn.prepareStatement("update " + table + " set owner = ?, expire_at = ?, update_time = ? where worker_id = ? and (owner = ? or expire_at < ?)")) {
+                    pst.setString(1, owner);
+                    pst.setLong(2, now + ttl);
+                    pst.setTimestamp(3, new Timestamp(now));
+                    pst.setInt(4, id);
+                    pst.setString(5, owner);
+                    pst.setLong(6, now);
+                    if (pst.executeUpdate() == 1) { validUntil = now + ttl; return; }
+                }
+                workerId = -1;
+                log.error("Worker id {} lease lost. owner: {}. Stop generating SnowFlake ids until leased again", id, owner);
+            }
+            id = tryAcquire(conn);
+            if (id >= 0) {
+                validUntil = now + ttl;
+                workerId = id;
+                log.warn("Leased worker id again: {}, owner: {}", id, owner);
+            }
+        } catch (Exception ex) { // 续约失败: 超过有效期后停止发号
+            log.error("Renew worker id lease error. workerId: " + workerId, ex);
+        }
+    }
+
+
+    /**
+     * 租约表不存在则创建
+     */
+    protected void createTableIfAbsent(Connection conn) throws SQLException {
+        DatabaseMetaData md = conn.getMetaData();
+        for (String t : new String[]{table, table.toUpperCase(), table.toLowerCase()}) {
+            try (ResultSet rs = md.getTables(conn.getCatalog(), null, t, null)) {
+                if (rs.next()) return;
+            }
+        }
+        try (Statement st = conn.createStatement()) {
+            st.execute("create table " + table + " (worker_id int not null primary key, owner varchar(128) not null, expire_at bigint not null, update_time timestamp)");
+            log.info("Created worker lease table: {}", table);
+        } catch (SQLException ex) { // 其它节点已创建
+            log.debug("Create table {} error: {}", table, ex.getMessage());
+        }
+    }
+
+
+    /**
+     * 停止续约并释放租约
+     */
+    @Override
+    public void close() {
+        if (heartbeat != null) { heartbeat.shutdownNow(); heartbeat = null; }
+        if (workerId < 0) return;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pst = conn.prepareStatement("delete from " + table + " where worker_id = ? and owner = ?")) {
+            pst.setInt(1, workerId);
+            pst.setString(2, owner);
+            pst.executeUpdate();
+            log.info("Released worker id: {}", workerId);
+        } catch (Exception ex) {
+            log.error("Release worker id lease error. workerId: " + workerId, ex);
+        }
+        workerId = -1;
+    }
+
+
+    /**
+     * 有效的 workerId: 生成id前调用
+     * @return workerId
+     * @throws IllegalStateException 租约丢失或已过有效期
+     */
+    public int validWorkerId() {
+        int id = workerId;
+        if (id < 0) throw new IllegalStateException("Worker id not leased. owner: " + owner);
+        if (System.currentTimeMillis() >= validUntil) throw new IllegalStateException("Worker id " + id + " lease expired without renewal. owner: " + owner);
+        return id;
+    }
+
+
+    /**
+     * 租到的 workerId. -1: 未租用(或租约丢失)
+     */
+    public int getWorkerId() { return workerId; }
+
+    public long getDatacenterId() { return workerId >> 5; }
+
+    public long getMachineId() { return workerId & 31; }
+
+    public String getOwner() { return owner; }
+}
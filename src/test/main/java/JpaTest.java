@@ -1,16 +1,58 @@
+import cn.xnatural.jpa.AsyncRepo;
+import cn.xnatural.jpa.CountMode;
+import cn.xnatural.jpa.Flow;
+import cn.xnatural.jpa.KeysetPage;
+import cn.xnatural.jpa.LRUCache;
+import cn.xnatural.jpa.Page;
+import cn.xnatural.jpa.QueryCache;
 import cn.xnatural.jpa.Repo;
+import cn.xnatural.jpa.RepoMetrics;
+import cn.xnatural.jpa.RoutingDataSource;
+import cn.xnatural.jpa.RowMapper;
+import cn.xnatural.jpa.ShardedRepo;
+import cn.xnatural.jpa.SnowFlakeIdGenerator;
+import cn.xnatural.jpa.TimeUUIDGenerator;
+import cn.xnatural.jpa.UnitOfWork;
+import cn.xnatural.jpa.LocalRegionFactory;
 import entity.Db;
+import entity.TestCachedEntity;
+import entity.TestSegmentIdEntity;
+import entity.TestSeqIdEntity;
+import entity.TestSnowFlakeEntity;
+import entity.TestTimeUUIDEntity;
 import entity.TestUUIDEntity;
 import entity.User;
+import org.h2.jdbc.JdbcConnection;
+import org.h2.jdbcx.JdbcDataSource;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.sql.DataSource;
+import java.sql.Connection;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 public class JpaTest {
 
@@ -254,4 +296,972 @@ public class JpaTest {
             log.info("exist: " + repo.exist(entity.Test.class, (root, query, cb) -> cb.equal(root.get("id"), 2)));
         }
     }
+
+
+    @Test
+    void testSaveAll() {
+        try (Repo repo = new Repo("jdbc:h2:mem:saveAll;DB_CLOSE_DELAY=-1")
+                .entities(entity.TestUUIDEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .init()) {
+            List<TestUUIDEntity> ls = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                ls.add(new TestUUIDEntity().setName("name" + i));
+            }
+            repo.saveAll(ls);
+            log.info("count: " + repo.count(TestUUIDEntity.class));
+            assertEquals(1000, repo.count(TestUUIDEntity.class));
+            assertEquals(1000, repo.saveAll(ls.iterator(), 200));
+        }
+    }
+
+
+    @Test
+    void testExecuteBatch() {
+        try (Repo repo = new Repo("jdbc:h2:mem:executeBatch;DB_CLOSE_DELAY=-1")
+                .entities(entity.Test.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .init()) {
+            List<Object[]> rows = new ArrayList<>();
+            for (int i = 0; i < 250; i++) {
+                rows.add(new Object[]{new Date(), new Date(), i, "name" + i});
+            }
+            int[] counts = repo.executeBatch("insert into test(create_time, update_time, age, name) values(?,?,?,?)", rows, 100);
+            assertEquals(250, counts.length);
+            assertEquals(250, repo.count(entity.Test.class));
+        }
+    }
+
+
+    @Test
+    void testStream() {
+        try (Repo repo = new Repo("jdbc:h2:mem:stream;DB_CLOSE_DELAY=-1")
+                .entities(entity.Test.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .init()) {
+            List<Object[]> rows = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                rows.add(new Object[]{new Date(), new Date(), i, "name" + i});
+            }
+            repo.executeBatch("insert into test(create_time, update_time, age, name) values(?,?,?,?)", rows);
+            try (Stream<Map> stream = repo.stream("select * from test where age >= ?", Map.class, 50)) {
+                assertEquals(50, stream.count());
+            }
+            assertEquals(10, (long) repo.trans(session -> repo.stream("select * from test where age < :age", Map.class, 10).count()));
+            List<entity.Test> ls = new ArrayList<>();
+            assertEquals(100, repo.forEach("select age as \"age\", name as \"name\" from test", entity.Test.class, ls::add));
+            assertEquals("name99", ls.get(99).getName());
+        }
+    }
+
+
+    @Test
+    void testEntityStream() {
+        try (Repo repo = new Repo("jdbc:h2:mem:entityStream;DB_CLOSE_DELAY=-1")
+                .entities(TestUUIDEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .init()) {
+            List<TestUUIDEntity> ls = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                ls.add(new TestUUIDEntity().setName("name" + (i % 10)));
+            }
+            repo.saveAll(ls);
+            try (Stream<TestUUIDEntity> stream = repo.stream(TestUUIDEntity.class, (root, query, cb) -> cb.equal(root.get("name"), "name1"))) {
+                assertEquals(10, stream.filter(e -> "name1".equals(e.getName())).count());
+            }
+            assertEquals(100, repo.forEach(TestUUIDEntity.class, null, e -> {}));
+        }
+    }
+
+
+    @Test
+    void testSeek() {
+        try (Repo repo = new Repo("jdbc:h2:mem:seek;DB_CLOSE_DELAY=-1")
+                .entities(TestUUIDEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .init()) {
+            List<TestUUIDEntity> ls = new ArrayList<>();
+            for (int i = 0; i < 95; i++) {
+                ls.add(new TestUUIDEntity().setName("name" + (i % 7)));
+            }
+            repo.saveAll(ls);
+            Set<String> ids = new HashSet<>();
+            KeysetPage<TestUUIDEntity> page = repo.seek(TestUUIDEntity.class, null, Arrays.asList("name desc", "id"), null, 10);
+            int pages = 1;
+            ids.addAll(page.to(TestUUIDEntity::getId).getList());
+            while (page.isHasNext()) {
+                page = repo.seek(TestUUIDEntity.class, null, Arrays.asList("name desc", "id"), page.getNextKey(), 10);
+                ids.addAll(page.to(TestUUIDEntity::getId).getList());
+                pages++;
+            }
+            assertEquals(10, pages);
+            assertEquals(95, ids.size());
+            assertEquals(14, repo.seek(TestUUIDEntity.class, (root, query, cb) -> cb.equal(root.get("name"), "name3"), "id", null, 20).getList().size());
+        }
+    }
+
+
+    @Test
+    void testPagingCountMode() {
+        try (Repo repo = new Repo("jdbc:h2:mem:pagingCountMode;DB_CLOSE_DELAY=-1")
+                .entities(entity.Test.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .init()) {
+            List<Object[]> rows = new ArrayList<>();
+            for (int i = 0; i < 25; i++) {
+                rows.add(new Object[]{new Date(), new Date(), i, "name" + i});
+            }
+            repo.executeBatch("insert into test(create_time, update_time, age, name) values(?,?,?,?)", rows);
+            String sql = "select * from test where age >= ? order by age";
+            for (CountMode mode : CountMode.values()) {
+                Page<Map> page = repo.paging(sql, 3, 10, mode, Map.class, 0);
+                log.info(mode + ": " + page);
+                assertEquals(5, page.getList().size());
+                assertFalse(page.getHasNext());
+                assertEquals(mode == CountMode.NONE ? null : 25L, page.getTotalRow());
+                assertEquals(5, repo.paging(sql, 1, 10, mode, Map.class, 0).getList().iterator().next().size());
+                assertTrue(repo.paging(sql, 2, 10, mode, Map.class, 0).getHasNext());
+                assertEquals(mode == CountMode.NONE ? null : 25L, repo.paging(entity.Test.class, 1, 10, (root, query, cb) -> cb.ge(root.get("age"), 0), null, mode).getTotalRow());
+                assertEquals(mode == CountMode.NONE ? null : 25L, repo.paging(sql, 4, 10, mode, Map.class, 0).getTotalRow());
+            }
+            // 缓存的总条数在表被写时失效
+            repo.execute("insert into test(create_time, update_time, age, name) values(?,?,?,?)", new Date(), new Date(), 30, "name30");
+            assertEquals(26L, repo.paging(sql, 1, 10, CountMode.CACHED, Map.class, 0).getTotalRow());
+            assertEquals(26L, repo.paging(entity.Test.class, 1, 10, (root, query, cb) -> cb.ge(root.get("age"), 0), null, CountMode.CACHED).getTotalRow());
+            repo.delete(repo.byAttr(entity.Test.class, "name", "name30"));
+            assertEquals(25L, repo.paging(sql, 1, 10, CountMode.CACHED, Map.class, 0).getTotalRow());
+            assertEquals(25L, repo.paging(entity.Test.class, 1, 10, (root, query, cb) -> cb.ge(root.get("age"), 0), null, CountMode.CACHED).getTotalRow());
+        }
+    }
+
+
+    @Test
+    void testRowMapper() {
+        // 默认精确匹配: setter(set + 首字母大写) 或 public 字段
+        assertEquals("n", ((entity.Test) RowMapper.of(entity.Test.class).transformTuple(new Object[]{"n"}, new String[]{"name"})).getName());
+        assertNull(((entity.Test) RowMapper.of(entity.Test.class).transformTuple(new Object[]{"n"}, new String[]{"NAME"})).getName());
+        try (Repo repo = new Repo("jdbc:h2:mem:rowMapper;DB_CLOSE_DELAY=-1")
+                .entities(entity.Test.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("rowMapper.looseMatch", true)
+                .init()) {
+            repo.execute("insert into test(create_time, update_time, age, name) values(?,?,?,?)", new Date(), new Date(), 22, "name");
+            // 列名大小写/下划线, BIGINT -> Long, TIMESTAMP -> Date, count(1) BIGINT -> Integer
+            entity.Test test = repo.row("select id, create_time, name, count(1) over() as age from test t", entity.Test.class);
+            assertEquals(1L, test.getId());
+            assertEquals(1, test.getAge());
+            assertEquals("name", test.getName());
+            assertNotNull(test.getCreateTime());
+            for (int i = 0; i < 3; i++) {
+                assertEquals("name", repo.rows("select name from test", entity.Test.class).get(0).getName());
+            }
+        }
+    }
+
+
+    @Test
+    void testParamPlanCache() {
+        try (Repo repo = new Repo("jdbc:h2:mem:paramPlan;DB_CLOSE_DELAY=-1")
+                .entities(entity.Test.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .init()) {
+            repo.execute("insert into test(create_time, update_time, age, name) values(?,?,?,?)", new Date(), new Date(), 22, "name");
+            for (int i = 0; i < 10; i++) {
+                assertEquals(1, repo.rows("select * from test where name = :name and age in (:ages)", "name", Arrays.asList(21, 22)).size());
+            }
+            log.info(repo.getParamPlanCache().toString());
+            assertEquals(9, repo.getParamPlanCache().getHits());
+            assertEquals(2, repo.getParamPlanCache().getMisses());
+        }
+        // 超出容量淘汰: 最近被访问过的多留一轮
+        LRUCache<String, Integer> lru = new LRUCache<>(2);
+        lru.put("a", 1); lru.put("b", 2);
+        assertEquals(1, lru.get("a"));
+        lru.put("c", 3);
+        assertEquals(2, lru.size());
+        assertEquals(1, lru.getEvictions());
+        assertEquals(1, lru.get("a"));
+        assertNull(lru.get("b"));
+    }
+
+
+    @Test
+    void testSnowFlakeId() throws Exception {
+        try (Repo repo = new Repo("jdbc:h2:mem:snowFlake;DB_CLOSE_DELAY=-1")
+                .entities(TestSnowFlakeEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("snowFlake.datacenterId", 3)
+                .setAttr("snowFlake.machineId", 5)
+                .init()) {
+            TestSnowFlakeEntity e = repo.saveOrUpdate(new TestSnowFlakeEntity().setName("snow"));
+            assertEquals(3, (e.getId() >> 17) & 31);
+            assertEquals(5, (e.getId() >> 12) & 31);
+        }
+        SnowFlakeIdGenerator generator = new SnowFlakeIdGenerator(1, 1);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService exec = Executors.newFixedThreadPool(8);
+        List<Future<?>> fs = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            fs.add(exec.submit(() -> {
+                for (int i = 0; i < 20000; i++) ids.add(generator.nextId());
+                for (int i = 0; i < 100; i++) {
+                    long[] arr = generator.nextIds(100);
+                    for (int j = 1; j < arr.length; j++) assertTrue(arr[j] > arr[j - 1]);
+                    for (long id : arr) ids.add(id);
+                }
+            }));
+        }
+        for (Future<?> f : fs) f.get();
+        exec.shutdown();
+        assertEquals(8 * (20000 + 100 * 100), ids.size());
+        // 一次最多预留 maxBorrowMs + 1 毫秒的序号
+        assertThrows(IllegalArgumentException.class, () -> generator.nextIds(((1000 + 1) << 12) + 1));
+    }
+
+
+    @Test
+    void testTimeUUID() {
+        try (Repo repo = new Repo("jdbc:h2:mem:timeUUID;DB_CLOSE_DELAY=-1")
+                .entities(TestTimeUUIDEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .init()) {
+            for (int i = 0; i < 10; i++) {
+                repo.saveOrUpdate(new TestTimeUUIDEntity().setName("name" + i));
+            }
+            List<TestTimeUUIDEntity> ls = repo.rows(TestTimeUUIDEntity.class, 0, 10, (root, query, cb) -> {
+                query.orderBy(cb.asc(root.get("id")));
+                return null;
+            });
+            assertEquals(10, ls.size());
+            for (int i = 0; i < ls.size(); i++) {
+                assertEquals("name" + i, ls.get(i).getName());
+                assertEquals(32, ls.get(i).getId().length());
+            }
+        }
+        String prev = TimeUUIDGenerator.nextId();
+        for (int i = 0; i < 100000; i++) {
+            String id = TimeUUIDGenerator.nextId();
+            assertTrue(id.compareTo(prev) > 0);
+            prev = id;
+        }
+        assertEquals(7, TimeUUIDGenerator.nextUUID().version());
+        assertEquals(2, TimeUUIDGenerator.nextUUID().variant());
+    }
+
+
+    @Test
+    void testSeqId() {
+        try (Repo repo = new Repo("jdbc:h2:mem:seqId;DB_CLOSE_DELAY=-1")
+                .entities(TestSeqIdEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("seqId.increment", 100)
+                .init()) {
+            // 序列从已有数据的 max(id) + 1 开始
+            repo.execute("insert into " + repo.tbName(TestSeqIdEntity.class) + "(id, create_time, update_time, name) values(500, ?, ?, 'exist')", new Date(), new Date());
+            assertEquals(501, repo.saveOrUpdate(new TestSeqIdEntity().setName("first")).getId());
+            List<TestSeqIdEntity> ls = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                ls.add(new TestSeqIdEntity().setName("name" + i));
+            }
+            repo.saveAll(ls);
+            assertEquals(2002, repo.count(TestSeqIdEntity.class));
+            assertEquals(2000, ls.stream().map(TestSeqIdEntity::getId).distinct().count());
+            // 另一个节点(Repo)共用同一个序列表, id 不重复
+            try (Repo repo2 = new Repo("jdbc:h2:mem:seqId;DB_CLOSE_DELAY=-1")
+                    .entities(TestSeqIdEntity.class)
+                    .setAttr("seqId.increment", 100)
+                    .init()) {
+                for (int i = 0; i < 10; i++) {
+                    repo2.saveOrUpdate(new TestSeqIdEntity().setName("node2_" + i));
+                }
+            }
+            for (int i = 0; i < 10; i++) {
+                repo.saveOrUpdate(new TestSeqIdEntity().setName("node1_" + i));
+            }
+            assertEquals(2022, repo.count(TestSeqIdEntity.class));
+            assertEquals(2022L, ((Number) repo.row("select count(distinct id) as c from " + repo.tbName(TestSeqIdEntity.class)).values().iterator().next()).longValue());
+        }
+    }
+
+
+    @Test
+    void testSegmentId() throws Exception {
+        try (Repo repo = new Repo("jdbc:h2:mem:segmentId;DB_CLOSE_DELAY=-1")
+                .entities(TestSegmentIdEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("segmentId.step", 100)
+                .init()) {
+            // 剩余不到 10% 时预取下一个号段
+            for (int i = 0; i < 95; i++) repo.segmentId("prefetch");
+            long maxId = 0;
+            for (int i = 0; i < 50 && maxId < 201; i++) {
+                Thread.sleep(20);
+                maxId = ((Number) repo.row("select max_id from id_segment where biz_tag = ?", "prefetch").values().iterator().next()).longValue();
+            }
+            assertEquals(201, maxId);
+            assertEquals(96, repo.segmentId("prefetch"));
+
+            Set<Long> ids = ConcurrentHashMap.newKeySet();
+            ExecutorService exec = Executors.newFixedThreadPool(8);
+            List<Future<?>> fs = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                fs.add(exec.submit(() -> {
+                    for (int i = 0; i < 5000; i++) ids.add(repo.segmentId("order"));
+                }));
+            }
+            for (Future<?> f : fs) f.get();
+            exec.shutdown();
+            assertEquals(8 * 5000, ids.size());
+
+            TestSegmentIdEntity e = repo.saveOrUpdate(new TestSegmentIdEntity().setName("segment"));
+            assertEquals(1, e.getId());
+            assertEquals(2, repo.saveOrUpdate(new TestSegmentIdEntity().setName("segment2")).getId());
+        }
+    }
+
+
+    @Test
+    void testWorkerIdLease() throws Exception {
+        try (Repo repo1 = new Repo("jdbc:h2:mem:workerLease;DB_CLOSE_DELAY=-1")
+                .entities(TestSnowFlakeEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("snowFlake.lease", true)
+                .init()) {
+            assertEquals(0, repo1.getWorkerIdLease().getWorkerId());
+            // 没用过的 workerId 优先, 用完时回收过期的租约
+            List<Object[]> rows = new ArrayList<>();
+            for (int i = 2; i <= 1023; i++) rows.add(new Object[]{i, "alive", System.currentTimeMillis() + 60000});
+            repo1.executeBatch("insert into worker_lease(worker_id, owner, expire_at) values(?, ?, ?)", rows);
+            repo1.execute("insert into worker_lease(worker_id, owner, expire_at) values(1, 'dead', ?)", System.currentTimeMillis() - 1000);
+            int workerId;
+            try (Repo repo2 = new Repo("jdbc:h2:mem:workerLease;DB_CLOSE_DELAY=-1")
+                    .entities(TestSnowFlakeEntity.class)
+                    .setAttr("snowFlake.lease", true)
+                    .init()) {
+                workerId = repo2.getWorkerIdLease().getWorkerId();
+                assertEquals(1, workerId);
+                TestSnowFlakeEntity e = repo2.saveOrUpdate(new TestSnowFlakeEntity().setName("node2"));
+                assertEquals(workerId, (e.getId() >> 12) & 1023);
+            }
+            // 关闭后释放
+            assertTrue(repo1.rows("select * from worker_lease where worker_id = ?", workerId).isEmpty());
+            try (Repo repo3 = new Repo("jdbc:h2:mem:workerLease;DB_CLOSE_DELAY=-1")
+                    .entities(TestSnowFlakeEntity.class)
+                    .setAttr("snowFlake.lease", true)
+                    .setAttr("snowFlake.leaseTtl", 3000)
+                    .init()) {
+                assertEquals(1, repo3.getWorkerIdLease().getWorkerId());
+                // 租约被其它节点占用: 停止发号, 直到重新租到 workerId
+                repo1.execute("update worker_lease set owner = 'other', expire_at = ? where worker_id = 1", System.currentTimeMillis() + 60000);
+                Thread.sleep(1500);
+                assertEquals(-1, repo3.getWorkerIdLease().getWorkerId());
+                assertThrows(IllegalStateException.class, () -> repo3.saveOrUpdate(new TestSnowFlakeEntity().setName("fenced")));
+                repo1.execute("delete from worker_lease where worker_id = 5");
+                Thread.sleep(1200);
+                assertEquals(5, repo3.getWorkerIdLease().getWorkerId());
+                TestSnowFlakeEntity e = repo3.saveOrUpdate(new TestSnowFlakeEntity().setName("node3"));
+                assertEquals(5, (e.getId() >> 12) & 1023);
+            }
+            // 租约和手动配置的节点id不能同时使用; 初始化失败时释放租约
+            assertThrows(IllegalArgumentException.class, () -> new Repo("jdbc:h2:mem:workerLease;DB_CLOSE_DELAY=-1")
+                    .entities(TestSnowFlakeEntity.class)
+                    .setAttr("snowFlake.lease", true)
+                    .setAttr("snowFlake.machineId", 1)
+                    .init());
+            repo1.execute("delete from worker_lease where worker_id = 6");
+            assertThrows(RuntimeException.class, () -> new Repo("jdbc:h2:mem:workerLease;DB_CLOSE_DELAY=-1")
+                    .entities(TestSnowFlakeEntity.class)
+                    .setAttr("snowFlake.lease", true)
+                    .setAttr("paramPlanCacheSize", 0)
+                    .init());
+            assertTrue(repo1.rows("select * from worker_lease where worker_id = 6").isEmpty());
+        }
+    }
+
+
+    @Test
+    void testReadWriteSplit() throws Exception {
+        for (String name : Arrays.asList("replica1", "replica2")) {
+            try (Repo replica = new Repo("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1")
+                    .entities(entity.Test.class)
+                    .setAttr("hibernate.hbm2ddl.auto", "update")
+                    .init()) {
+                replica.saveOrUpdate(new entity.Test().setName(name).setAge(1));
+            }
+        }
+        try (Repo repo = new Repo("jdbc:h2:mem:primary;DB_CLOSE_DELAY=-1")
+                .replica("jdbc:h2:mem:replica1;DB_CLOSE_DELAY=-1")
+                .replica("jdbc:h2:mem:replica2;DB_CLOSE_DELAY=-1")
+                .entities(entity.Test.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("stickyPrimaryMs", 200)
+                .init()) {
+            // 写之后的一段时间内读主库
+            repo.saveOrUpdate(new entity.Test().setName("primary").setAge(1));
+            assertEquals("primary", repo.row("select name from test").get("NAME"));
+            assertEquals("primary", repo.all(entity.Test.class).get(0).getName());
+            Thread.sleep(300);
+            // 轮询从库
+            Set<Object> names = new HashSet<>();
+            for (int i = 0; i < 4; i++) names.add(repo.row("select name from test").get("NAME"));
+            assertEquals(new HashSet<>(Arrays.asList("replica1", "replica2")), names);
+            assertEquals(1, repo.count(entity.Test.class));
+            try (Stream<Map> stream = repo.stream("select name from test", Map.class)) {
+                assertTrue(stream.map(m -> m.get("NAME")).allMatch(n -> n.toString().startsWith("replica")));
+            }
+            // 事务中读主库
+            assertEquals("primary", repo.trans(session -> repo.row("select name from test").get("NAME")));
+            assertTrue(repo.getJdbcUrl().contains("primary"));
+        }        // 活动连接最少: 只有这个策略统计活动连接
+        List<DataSource> replicas = new ArrayList<>();
+        for (String name : Arrays.asList("replica1", "replica2")) {
+            JdbcDataSource ds = new JdbcDataSource();
+            ds.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+            replicas.add(ds);
+        }
+        JdbcDataSource primary = new JdbcDataSource();
+        primary.setURL("jdbc:h2:mem:primary;DB_CLOSE_DELAY=-1");
+        RoutingDataSource leastActive = new RoutingDataSource(primary, replicas, RoutingDataSource.Balance.LEAST_ACTIVE);
+        leastActive.setRead(true);
+        try (Connection c1 = leastActive.getConnection(); Connection c2 = leastActive.getConnection()) {
+            assertEquals(1, leastActive.getActive(0));
+            assertEquals(1, leastActive.getActive(1));
+            assertTrue(c1.isWrapperFor(JdbcConnection.class));
+            assertNotNull(c2.unwrap(JdbcConnection.class));
+        }
+        assertEquals(0, leastActive.getActive(0) + leastActive.getActive(1));
+        RoutingDataSource roundRobin = new RoutingDataSource(primary, replicas, RoutingDataSource.Balance.ROUND_ROBIN);
+        roundRobin.setRead(true);
+        try (Connection c = roundRobin.getConnection()) {
+            assertTrue(c instanceof JdbcConnection);
+            assertEquals(0, roundRobin.getActive(0));
+        }
+    }
+
+
+    @Test
+    void testShardedRepo() {
+        List<Repo> shards = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            shards.add(new Repo("jdbc:h2:mem:shard" + i + ";DB_CLOSE_DELAY=-1")
+                    .entities(TestSnowFlakeEntity.class)
+                    .setAttr("hibernate.hbm2ddl.auto", "update")
+                    .setAttr("snowFlake.machineId", i) // 各分片id不重复
+                    .init());
+        }
+        try (ShardedRepo repo = new ShardedRepo(shards).shardKey(TestSnowFlakeEntity.class, TestSnowFlakeEntity::getName)) {
+            for (int i = 0; i < 30; i++) {
+                repo.saveOrUpdate(new TestSnowFlakeEntity().setName("name" + i));
+            }
+            for (Repo shard : shards) {
+                assertTrue(shard.count(TestSnowFlakeEntity.class) > 0);
+            }
+            assertEquals(30, repo.count(TestSnowFlakeEntity.class));
+            assertEquals(30, repo.rows(TestSnowFlakeEntity.class, null).size());
+            TestSnowFlakeEntity e = repo.rows(TestSnowFlakeEntity.class, (root, query, cb) -> cb.equal(root.get("name"), "name7")).get(0);
+            assertEquals("name7", repo.byId(TestSnowFlakeEntity.class, "name7", e.getId()).getName());
+            assertEquals("name7", repo.byId(TestSnowFlakeEntity.class, e.getId()).getName());
+            // 按 id 排序分页: 多路归并
+            List<Long> ids = new ArrayList<>();
+            for (int page = 1; page <= 4; page++) {
+                Page<TestSnowFlakeEntity> p = repo.paging(TestSnowFlakeEntity.class, page, 8, (root, query, cb) -> {
+                    query.orderBy(cb.asc(root.get("id")));
+                    return null;
+                }, Comparator.comparing(TestSnowFlakeEntity::getId));
+                assertEquals(30, p.getTotalRow());
+                assertEquals(4, p.getTotalPage());
+                p.getList().forEach(o -> ids.add(o.getId()));
+            }
+            assertEquals(30, ids.size());
+            List<Long> sorted = new ArrayList<>(ids);
+            sorted.sort(Comparator.naturalOrder());
+            assertEquals(sorted, ids);
+            Page<Map> p = repo.paging("select id, name from test_snow_flake_entity order by name desc", 2, 5,
+                    Comparator.comparing((Map m) -> m.get("NAME").toString()).reversed(), Map.class);
+            assertEquals(Arrays.asList("name4", "name3", "name29", "name28", "name27"), p.getList().stream().map(m -> m.get("NAME")).collect(java.util.stream.Collectors.toList()));
+            repo.delete(e);
+            assertEquals(29, repo.count(TestSnowFlakeEntity.class));
+        }
+        // 分片的 SnowFlake 节点id重复
+        try (Repo s1 = new Repo("jdbc:h2:mem:shardDup1").entities(TestSnowFlakeEntity.class).init();
+             Repo s2 = new Repo("jdbc:h2:mem:shardDup2").entities(TestSnowFlakeEntity.class).init()) {
+            assertThrows(IllegalArgumentException.class, () -> new ShardedRepo(Arrays.asList(s1, s2)));
+        }
+    }
+
+
+    @Test
+    void testLocalCache() {
+        try (Repo repo = new Repo("jdbc:h2:mem:localCache;DB_CLOSE_DELAY=-1")
+                .entities(TestCachedEntity.class, entity.Test.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("cache.local", true)
+                .setAttr("cache.local.maxEntries", 5)
+                .init();
+             Repo other = new Repo("jdbc:h2:mem:localCache;DB_CLOSE_DELAY=-1").entities(TestCachedEntity.class).init()) {
+            TestCachedEntity e = repo.saveOrUpdate(new TestCachedEntity().setCode("c1").setName("n1"));
+            LocalRegionFactory.Storage storage = repo.getCacheStats().get(TestCachedEntity.class.getName());
+            assertNotNull(storage);
+            // IDENTITY 插入不会放入缓存, 第一次读取时放入
+            assertEquals("n1", repo.byId(TestCachedEntity.class, e.getId()).getName());
+            long hits = storage.getHits();
+            assertEquals("n1", repo.byId(TestCachedEntity.class, e.getId()).getName());
+            assertEquals(hits + 1, storage.getHits());
+            // 绕过缓存修改数据库: 读到的是缓存
+            other.execute("update test_cached_entity set name = 'changed' where id = ?", e.getId());
+            assertEquals("n1", repo.byId(TestCachedEntity.class, e.getId()).getName());
+            // saveOrUpdate 后缓存更新
+            repo.saveOrUpdate(e.setName("n2"));
+            assertEquals("n2", repo.byId(TestCachedEntity.class, e.getId()).getName());
+            // byAttr 查询缓存: 表更新后失效
+            assertEquals("n2", repo.byAttr(TestCachedEntity.class, "code", "c1").getName());
+            assertEquals("n2", repo.byAttr(TestCachedEntity.class, "code", "c1").getName());
+            repo.saveOrUpdate(e.setName("n3"));
+            assertEquals("n3", repo.byAttr(TestCachedEntity.class, "code", "c1").getName());
+            // 没有 @Cacheable 的实体不缓存
+            assertNull(repo.getCacheStats().get(entity.Test.class.getName()));
+            // 条数限制
+            for (int i = 0; i < 10; i++) {
+                TestCachedEntity o = repo.saveOrUpdate(new TestCachedEntity().setCode("code" + i));
+                repo.byId(TestCachedEntity.class, o.getId());
+            }
+            assertEquals(5, storage.getSize());
+            assertTrue(storage.getEvictions() > 0);
+            assertTrue(storage.getBytes() > 0);
+            // 删除后失效
+            repo.delete(e);
+            assertNull(repo.byId(TestCachedEntity.class, e.getId()));
+            log.info(repo.getCacheStats().toString());
+        }
+    }
+
+
+    @Test
+    void testQueryCache() {
+        try (Repo repo = new Repo("jdbc:h2:mem:queryCache;DB_CLOSE_DELAY=-1")
+                .entities(TestCachedEntity.class, TestSnowFlakeEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("queryCache.maxEntries", 3)
+                .init()) {
+            assertEquals(new HashSet<>(Arrays.asList("a", "b", "c", "d", "e")), QueryCache.readTables("select * from db.`a` t1 join b on t1.id=b.id left join \"C\" c join e, (select 1 from d) x"));
+            assertEquals("a", QueryCache.writeTable("insert into `db`.a values(1)"));
+            assertNull(QueryCache.writeTable("call proc()"));
+            QueryCache cache = repo.getQueryCache();
+            TestCachedEntity e = repo.saveOrUpdate(new TestCachedEntity().setCode("c1").setName("n1"));
+            String sql = "select name from test_cached_entity where code = ?";
+            assertEquals("n1", repo.cache().row(sql, "c1").get("NAME"));
+            assertEquals("n1", repo.cache().row(sql, "c1").get("NAME"));
+            assertEquals(1, cache.getHits());
+            assertEquals(1, cache.getMisses());
+            // 不同参数, 不同包装类型: 不同的key
+            assertNull(repo.cache().row(sql, "c2"));
+            assertNull(repo.cache().row(sql, "c2"));
+            assertEquals(1, repo.cache().rows(sql, Map.class, "c1").size());
+            assertEquals(2, cache.getHits());
+            // execute 写表后失效
+            repo.execute("update test_cached_entity set name = 'n2' where code = ?", "c1");
+            assertEquals("n2", repo.cache().row(sql, "c1").get("NAME"));
+            // saveOrUpdate 后失效
+            repo.saveOrUpdate(e.setName("n3"));
+            assertEquals("n3", repo.cache().row(sql, "c1").get("NAME"));
+            // 写其它表不影响
+            long hits = cache.getHits();
+            repo.saveOrUpdate(new TestSnowFlakeEntity().setName("s1"));
+            assertEquals("n3", repo.cache().row(sql, "c1").get("NAME"));
+            assertEquals(hits + 1, cache.getHits());
+            // 指定表
+            String viewSql = "select count(1) c from test_cached_entity";
+            assertEquals(1, ((Number) repo.cache().tables("test_snow_flake_entity").row(viewSql).get("C")).intValue());
+            repo.saveOrUpdate(new TestCachedEntity().setCode("c2").setName("n1"));
+            assertEquals(1, ((Number) repo.cache().tables("test_snow_flake_entity").row(viewSql).get("C")).intValue());
+            repo.saveOrUpdate(new TestSnowFlakeEntity().setName("s2"));
+            assertEquals(2, ((Number) repo.cache().tables("test_snow_flake_entity").row(viewSql).get("C")).intValue());
+            // 分页
+            Page<Map> p = repo.cache().paging("select * from test_cached_entity order by id", 1, 10);
+            assertEquals(2L, p.getTotalRow());
+            assertEquals(2, repo.cache().paging("select * from test_cached_entity order by id", 1, 10).getList().size());
+            // delete 后失效
+            repo.delete(TestCachedEntity.class, e.getId());
+            assertEquals(1L, repo.cache().paging("select * from test_cached_entity order by id", 1, 10).getTotalRow());
+            // 事务中不走缓存
+            repo.trans(session -> {
+                repo.execute("update test_cached_entity set name = 'tx' where code = ?", "c2");
+                assertEquals("tx", repo.cache().row(sql, "c2").get("NAME"));
+                throw new RuntimeException("rollback");
+            }, null, ex -> {});
+            assertEquals("n1", repo.cache().row(sql, "c2").get("NAME"));
+            // 不能解析的写语句: 全部失效
+            repo.cache().row(sql, "c2");
+            repo.execute("set @x = 1");
+            assertEquals(0, cache.getSize());
+            // 条数限制
+            for (int i = 0; i < 5; i++) repo.cache().row(sql, "x" + i);
+            assertEquals(3, cache.getSize());
+            assertTrue(cache.getEvictions() > 0);
+            log.info(cache.toString());
+        }
+    }
+
+
+    @Test
+    void testAsyncRepo() throws Exception {
+        try (Repo repo = new Repo("jdbc:h2:mem:asyncRepo;DB_CLOSE_DELAY=-1")
+                .entities(TestSnowFlakeEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("maxActive", 2)
+                .init();
+             AsyncRepo async = new AsyncRepo(repo, null, 4)) {
+            TestSnowFlakeEntity e = async.saveOrUpdateAsync(new TestSnowFlakeEntity().setName("a1")).get();
+            assertEquals("a1", async.byIdAsync(TestSnowFlakeEntity.class, e.getId()).get().getName());
+            assertEquals(1L, async.countAsync(TestSnowFlakeEntity.class, null).get());
+            assertEquals(1, async.rowsAsync("select * from test_snow_flake_entity", Map.class).get().size());
+            assertEquals(1, async.executeAsync("update test_snow_flake_entity set name = ? where id = ?", "a2", e.getId()).get());
+            assertEquals("a2", async.transAsync(session -> session.get(TestSnowFlakeEntity.class, e.getId()).getName()).get());
+            // 任务数超过 maxPending: 立即失败
+            java.util.concurrent.CountDownLatch latch = new java.util.concurrent.CountDownLatch(1);
+            List<java.util.concurrent.CompletableFuture<Long>> fs = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                fs.add(async.submit(r -> {
+                    try { latch.await(); } catch (InterruptedException ex) { throw new RuntimeException(ex); }
+                    return r.count(TestSnowFlakeEntity.class);
+                }));
+            }
+            assertEquals(4, async.getPending());
+            java.util.concurrent.CompletableFuture<Long> rejected = async.countAsync(TestSnowFlakeEntity.class, null);
+            assertTrue(rejected.isCompletedExceptionally());
+            assertEquals(1, async.getRejected());
+            latch.countDown();
+            for (java.util.concurrent.CompletableFuture<Long> f : fs) assertEquals(1L, f.get());
+            // 异常传递
+            java.util.concurrent.ExecutionException ex = assertThrows(java.util.concurrent.ExecutionException.class, () -> async.executeAsync("update not_exist set a = 1").get());
+            assertNotNull(ex.getCause());
+        }
+    }
+
+
+    @Test
+    void testPublisher() throws Exception {
+        try (Repo repo = new Repo("jdbc:h2:mem:publisher;DB_CLOSE_DELAY=-1")
+                .entities(TestSnowFlakeEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("maxActive", 1).setAttr("maxWait", 3000) // 连接没释放时后面的查询会失败
+                .init()) {
+            List<TestSnowFlakeEntity> es = new ArrayList<>();
+            for (int i = 0; i < 100; i++) es.add(new TestSnowFlakeEntity().setName("p" + i));
+            repo.saveAll(es);
+            // 每次请求10条, 读完
+            List<Object> items = new ArrayList<>();
+            boolean[] completed = {false};
+            repo.publisher("select * from test_snow_flake_entity where name like ?", Map.class, "p%").subscribe(new Flow.Subscriber<Map>() {
+                Flow.Subscription subscription;
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) { this.subscription = subscription; subscription.request(10); }
+                @Override
+                public void onNext(Map item) {
+                    items.add(item.get("NAME"));
+                    if (items.size() % 10 == 0) subscription.request(10);
+                }
+                @Override
+                public void onError(Throwable throwable) { fail(throwable); }
+                @Override
+                public void onComplete() { completed[0] = true; }
+            });
+            assertTrue(completed[0]);
+            assertEquals(100, items.size());
+            // 只在请求时读取, 取消后释放连接
+            List<TestSnowFlakeEntity> entities = new ArrayList<>();
+            Flow.Subscription[] sub = {null};
+            ExecutorService exec = Executors.newSingleThreadExecutor();
+            repo.publisher(TestSnowFlakeEntity.class, null).executor(exec).subscribe(new Flow.Subscriber<TestSnowFlakeEntity>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) { sub[0] = subscription; }
+                @Override
+                public void onNext(TestSnowFlakeEntity item) { synchronized (entities) { entities.add(item); entities.notifyAll(); } }
+                @Override
+                public void onError(Throwable throwable) { fail(throwable); }
+                @Override
+                public void onComplete() { fail("not complete"); }
+            });
+            Thread.sleep(100);
+            assertEquals(0, entities.size());
+            sub[0].request(5);
+            synchronized (entities) { while (entities.size() < 5) entities.wait(3000); }
+            Thread.sleep(100);
+            assertEquals(5, entities.size());
+            sub[0].cancel();
+            exec.shutdown();
+            assertTrue(exec.awaitTermination(3, java.util.concurrent.TimeUnit.SECONDS));
+            assertEquals(100, repo.count(TestSnowFlakeEntity.class));
+            // 非法请求数
+            Throwable[] error = {null};
+            repo.publisher("select * from test_snow_flake_entity", Map.class).subscribe(new Flow.Subscriber<Map>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) { subscription.request(0); }
+                @Override
+                public void onNext(Map item) { fail("no data"); }
+                @Override
+                public void onError(Throwable throwable) { error[0] = throwable; }
+                @Override
+                public void onComplete() { fail("not complete"); }
+            });
+            assertTrue(error[0] instanceof IllegalArgumentException);
+            assertEquals(100, repo.count(TestSnowFlakeEntity.class));
+        }
+    }
+
+
+    @Test
+    void testMetrics() {
+        try (Repo repo = new Repo("jdbc:h2:mem:metrics;DB_CLOSE_DELAY=-1")
+                .entities(TestSnowFlakeEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("metrics", true)
+                .init()) {
+            RepoMetrics metrics = repo.getMetrics();
+            assertEquals("select * from t where a = ? and b in (?) and c = ? and d1 = ?", metrics.fingerprint("select  * from t where a = 'x''y' and b in (1, 2,3) and c = -1.5 and d1 = ?"));
+            for (int i = 0; i < 10; i++) repo.saveOrUpdate(new TestSnowFlakeEntity().setName("m" + i));
+            for (int i = 0; i < 5; i++) repo.rows("select * from test_snow_flake_entity where name = 'm" + i + "'");
+            repo.rows("select * from test_snow_flake_entity");
+            repo.count(TestSnowFlakeEntity.class);
+            repo.execute("update test_snow_flake_entity set name = ? where name = ?", "x", "m1");
+            assertThrows(Exception.class, () -> repo.execute("update not_exist set a = 1"));
+            repo.trans(session -> repo.rows("select * from test_snow_flake_entity where name = ?", "x"));
+            // 按方法
+            assertEquals(10, metrics.method("saveOrUpdate").getCalls());
+            assertEquals(7, metrics.method("rows").getCalls());
+            assertEquals(16, metrics.method("rows").getRows());
+            assertEquals(1, metrics.method("execute").getRows());
+            assertEquals(1, metrics.method("execute").getErrors());
+            assertEquals(1, metrics.method("trans").getCalls()); // 内部的 trans 不统计
+            assertTrue(metrics.method("count").getMaxMicros() > 0);
+            RepoMetrics.Snapshot rows = metrics.method("rows");
+            assertTrue(rows.getP50Micros() <= rows.getP99Micros() && rows.getP99Micros() <= rows.getMaxMicros());
+            // 按 sql 指纹: 字面量不同的 sql 合并
+            assertEquals(6, metrics.statement("select * from test_snow_flake_entity where name = 'm0'").getCalls()); // 包括参数形式的
+            // 实体方法按 hibernate 生成的 sql 统计
+            assertTrue(metrics.top(100, RepoMetrics.By.CALLS).stream().anyMatch(s -> s.getKey().toLowerCase().startsWith("select count(")));
+            assertEquals(10, metrics.top(100, RepoMetrics.By.CALLS).stream().filter(s -> s.getKey().toLowerCase().startsWith("insert into")).findFirst().get().getCalls());
+            log.info(metrics.report(5));
+            // 直方图
+            RepoMetrics.Histogram h = new RepoMetrics.Histogram();
+            for (int i = 1; i <= 1000; i++) h.record(i);
+            assertEquals(1000, h.getMax());
+            assertTrue(Math.abs(h.percentile(0.5) - 500) <= 500 / 8);
+            assertTrue(Math.abs(h.percentile(0.99) - 990) <= 990 / 8);
+        }        // 指纹缓存满了之后照常计算
+        RepoMetrics small = new RepoMetrics(1);
+        for (int i = 0; i < 5; i++) assertEquals("select ?", small.fingerprint("select " + i));
+        // 默认不统计
+        try (Repo repo = new Repo("jdbc:h2:mem:metricsOff").init()) {
+            assertNull(repo.getMetrics());
+        }
+    }
+
+
+    @Test
+    void testReadTrans() {
+        try (Repo repo = new Repo("jdbc:h2:mem:readTrans;DB_CLOSE_DELAY=-1")
+                .entities(TestSnowFlakeEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("metrics", true)
+                .init()) {
+            TestSnowFlakeEntity e = repo.saveOrUpdate(new TestSnowFlakeEntity().setName("r1"));
+            // 只读事务: 不 flush, 实体只读
+            repo.readTrans(session -> {
+                assertEquals(FlushMode.MANUAL, session.getHibernateFlushMode());
+                assertTrue(session.isDefaultReadOnly());
+                TestSnowFlakeEntity loaded = session.get(TestSnowFlakeEntity.class, e.getId());
+                assertTrue(session.isReadOnly(loaded));
+                loaded.setName("changed");
+                return null;
+            });
+            assertEquals("r1", repo.byId(TestSnowFlakeEntity.class, e.getId()).getName());
+            // 内置读方法没有外层事务时用只读事务
+            assertEquals(1, repo.count(TestSnowFlakeEntity.class));
+            // 加入外层(可写)事务
+            repo.trans(session -> {
+                repo.readTrans(s -> {
+                    assertSame(session, s);
+                    assertFalse(s.isDefaultReadOnly());
+                    return null;
+                });
+                TestSnowFlakeEntity loaded = repo.byId(TestSnowFlakeEntity.class, e.getId());
+                assertFalse(session.isReadOnly(loaded));
+                loaded.setName("r2");
+                return null;
+            });
+            assertEquals("r2", repo.byId(TestSnowFlakeEntity.class, e.getId()).getName());
+            // 出错回滚后可继续使用
+            assertThrows(Exception.class, () -> repo.readTrans(session -> session.createNativeQuery("select * from not_exist").list()));
+            assertEquals(1, repo.rows("select * from test_snow_flake_entity").size());
+            assertEquals(1, repo.getMetrics().method("readTrans").getErrors());
+            // 写操作不会被静默丢弃: 回滚并抛错
+            assertThrows(RuntimeException.class, () -> repo.readTrans(session -> session.save(new TestSnowFlakeEntity().setName("w"))));
+            assertThrows(RuntimeException.class, () -> repo.readTrans(session -> { session.delete(session.get(TestSnowFlakeEntity.class, e.getId())); return null; }));
+            assertEquals(1, repo.count(TestSnowFlakeEntity.class));
+            // Error 时也恢复事务标记
+            assertThrows(AssertionError.class, () -> repo.readTrans(session -> { throw new AssertionError("boom"); }));
+            assertTrue(repo.readTrans(Session::isDefaultReadOnly));
+        }
+    }
+
+
+    @Test
+    void testUnitOfWork() {
+        try (Repo repo = new Repo("jdbc:h2:mem:uow;DB_CLOSE_DELAY=-1")
+                .entities(TestSnowFlakeEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("metrics", true)
+                .setAttr("uow.lockTimeout", 200)
+                .init();
+             Repo other = new Repo("jdbc:h2:mem:uow2;DB_CLOSE_DELAY=-1")
+                .entities(TestSnowFlakeEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .init()) {
+            // 作用域内共用一个 session, 一个连接
+            repo.session(uow -> {
+                TestSnowFlakeEntity e = repo.saveOrUpdate(new TestSnowFlakeEntity().setName("u1"));
+                assertSame(e, repo.byId(TestSnowFlakeEntity.class, e.getId()));
+                assertEquals(1, repo.count(TestSnowFlakeEntity.class));
+                assertSame(uow.getSession(), repo.trans(session -> session));
+                Connection c1 = uow.getSession().doReturningWork(c -> c);
+                assertSame(c1, repo.trans(session -> session.doReturningWork(c -> c)));
+                assertSame(uow, repo.session(inner -> inner));
+                return null;
+            });
+            assertEquals(1, repo.count(TestSnowFlakeEntity.class));
+            // 嵌套事务: 失败只回滚嵌套部分
+            repo.session(uow -> {
+                repo.saveOrUpdate(new TestSnowFlakeEntity().setName("u2"));
+                assertThrows(RuntimeException.class, () -> uow.trans(session -> {
+                    repo.saveOrUpdate(new TestSnowFlakeEntity().setName("u3"));
+                    throw new RuntimeException("nested fail");
+                }));
+                uow.trans(session -> repo.saveOrUpdate(new TestSnowFlakeEntity().setName("u4")));
+                // Error 也回滚到 savepoint
+                assertThrows(AssertionError.class, () -> uow.trans(session -> {
+                    repo.saveOrUpdate(new TestSnowFlakeEntity().setName("u7"));
+                    throw new AssertionError("nested error");
+                }));
+                return null;
+            });
+            assertEquals(3, repo.count(TestSnowFlakeEntity.class));
+            assertFalse(repo.exist(TestSnowFlakeEntity.class, "name", "u3"));
+            assertFalse(repo.exist(TestSnowFlakeEntity.class, "name", "u7"));
+            // 异常/标记只回滚: 全部回滚
+            assertThrows(RuntimeException.class, () -> repo.session(uow -> {
+                repo.saveOrUpdate(new TestSnowFlakeEntity().setName("u5"));
+                throw new RuntimeException("fail");
+            }));
+            repo.session(uow -> {
+                repo.saveOrUpdate(new TestSnowFlakeEntity().setName("u6"));
+                uow.setRollbackOnly();
+                return null;
+            });
+            assertEquals(3, repo.count(TestSnowFlakeEntity.class));
+            assertEquals(4, repo.getMetrics().method("session").getCalls()); // 嵌套的不统计
+            assertEquals(1, repo.getMetrics().method("session").getErrors());
+            // 事务标记按 Repo 区分: 在一个 Repo 的事务中使用另一个 Repo
+            repo.trans(session -> {
+                other.saveOrUpdate(new TestSnowFlakeEntity().setName("o1"));
+                return other.rows("select * from test_snow_flake_entity");
+            });
+            assertEquals(1, other.count(TestSnowFlakeEntity.class));
+            // 阶段内等待同一工作单元的另一个阶段: 超时报错, 不死锁
+            UnitOfWork w = repo.begin();
+            CompletionException ex = assertThrows(CompletionException.class, () -> w.call(() -> CompletableFuture.supplyAsync(w.wrap(() -> 1)).join()));
+            assertTrue(ex.getCause().getMessage().startsWith("UnitOfWork is in use by another thread"));
+            w.rollback();
+        }
+    }
+
+
+    @Test
+    void testVirtualThreads() throws Exception {
+        ExecutorService vexec = AsyncRepo.virtualThreadExecutor();
+        ExecutorService exec = vexec == null ? Executors.newFixedThreadPool(64) : vexec; // JDK 21 以下用普通线程池
+        try (Repo repo = new Repo("jdbc:h2:mem:vthread;DB_CLOSE_DELAY=-1")
+                .entities(TestSnowFlakeEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("maxActive", 16)
+                .init()) {
+            // 工作单元跨线程
+            UnitOfWork uow = repo.begin();
+            TestSnowFlakeEntity e = CompletableFuture.supplyAsync(uow.wrap(() -> repo.saveOrUpdate(new TestSnowFlakeEntity().setName("hop"))), exec)
+                    .thenApplyAsync(uow.wrap(x -> repo.byId(TestSnowFlakeEntity.class, x.getId())), exec)
+                    .get(10, TimeUnit.SECONDS);
+            assertSame(e, uow.call(() -> repo.byId(TestSnowFlakeEntity.class, e.getId())));
+            assertEquals(0, CompletableFuture.supplyAsync(() -> repo.count(TestSnowFlakeEntity.class), exec).get()); // 未提交
+            uow.commit();
+            assertTrue(uow.isEnded());
+            assertThrows(RuntimeException.class, () -> uow.call(() -> null));
+            assertEquals(1, repo.count(TestSnowFlakeEntity.class));
+
+            // 数千个并发任务: 工作单元, 跨线程工作单元, 查询缓存
+            int n = 3000;
+            List<CompletableFuture<Long>> fs = new ArrayList<>(n);
+            // 未结束的跨线程工作单元各占一个连接: 限制数量, 留连接给其它任务(否则连接池被占满, 后续步骤排在等连接的任务后面)
+            Semaphore open = new Semaphore(8);
+            for (int i = 0; i < n; i++) {
+                String name = "v" + i;
+                if (i % 3 == 0) {
+                    fs.add(CompletableFuture.supplyAsync(() -> repo.session(w -> {
+                        TestSnowFlakeEntity x = repo.saveOrUpdate(new TestSnowFlakeEntity().setName(name));
+                        return repo.byId(TestSnowFlakeEntity.class, x.getId()).getId();
+                    }), exec));
+                } else if (i % 3 == 1) {
+                    open.acquire();
+                    UnitOfWork w = repo.begin();
+                    fs.add(CompletableFuture.supplyAsync(w.wrap(() -> repo.saveOrUpdate(new TestSnowFlakeEntity().setName(name))), exec)
+                            .thenApplyAsync(w.wrap(x -> repo.byAttr(TestSnowFlakeEntity.class, "name", name).getId()), exec)
+                            .whenComplete((r, ex) -> {
+                                try { if (ex == null) w.commit(); else w.rollback(); }
+                                finally { open.release(); }
+                            }));
+                } else {
+                    fs.add(CompletableFuture.supplyAsync(() -> {
+                        repo.cache().rows("select count(*) c from test_snow_flake_entity");
+                        return repo.saveOrUpdate(new TestSnowFlakeEntity().setName(name)).getId();
+                    }, exec));
+                }
+            }
+            Set<Long> ids = new HashSet<>();
+            for (CompletableFuture<Long> f : fs) ids.add(f.get(60, TimeUnit.SECONDS));
+            assertEquals(n, ids.size());
+            assertEquals(n + 1, repo.count(TestSnowFlakeEntity.class));
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+
+    @Test
+    void testExistProbe() {
+        try (Repo repo = new Repo("jdbc:h2:mem:exist;DB_CLOSE_DELAY=-1")
+                .entities(TestSnowFlakeEntity.class)
+                .setAttr("hibernate.hbm2ddl.auto", "update")
+                .setAttr("metrics", true)
+                .init()) {
+            assertFalse(repo.exist(TestSnowFlakeEntity.class));
+            for (int i = 0; i < 5; i++) repo.saveOrUpdate(new TestSnowFlakeEntity().setName("e" + (i % 2)));
+            assertTrue(repo.exist(TestSnowFlakeEntity.class));
+            assertTrue(repo.exist(TestSnowFlakeEntity.class, "name", "e1"));
+            assertFalse(repo.exist(TestSnowFlakeEntity.class, "name", "e2"));
+            assertFalse(repo.exist(TestSnowFlakeEntity.class, "name", null));
+            TestSnowFlakeEntity e = repo.byAttr(TestSnowFlakeEntity.class, "name", "e0");
+            assertTrue(repo.exist(TestSnowFlakeEntity.class, "name", "e0", "id", e.getId()));
+            assertFalse(repo.exist(TestSnowFlakeEntity.class, "name", "e1", "id", e.getId()));
+            // 条件中的 distinct, 排序不影响
+            assertTrue(repo.exist(TestSnowFlakeEntity.class, (root, query, cb) -> {
+                query.distinct(true).orderBy(cb.desc(root.get("id")));
+                return cb.like(root.get("name"), "e%");
+            }));
+            assertFalse(repo.exist(TestSnowFlakeEntity.class, (root, query, cb) -> cb.equal(root.get("name"), "x")));
+            // select 1 ... limit 1, 不做 count
+            assertEquals(9, repo.getMetrics().method("exist").getCalls());
+            List<String> sqls = repo.getMetrics().top(100, RepoMetrics.By.CALLS).stream().map(s -> s.getKey().toLowerCase()).collect(Collectors.toList());
+            assertTrue(sqls.stream().noneMatch(sql -> sql.contains("count(")));
+            assertTrue(sqls.stream().anyMatch(sql -> sql.matches("select \\? as \\w+ from test_snow_flake_entity .*limit \\?"))); // 指纹中的 1 为 ?
+        }
+    }
 }
@@ -0,0 +1,31 @@
+package entity;
+
+import cn.xnatural.jpa.LongIdEntity;
+
+import javax.persistence.Cacheable;
+import javax.persistence.Entity;
+
+@Entity
+@Cacheable
+public class TestCachedEntity extends LongIdEntity {
+    private String code;
+    private String name;
+
+    public String getCode() {
+        return code;
+    }
+
+    public TestCachedEntity setCode(String code) {
+        this.code = code;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public TestCachedEntity setName(String name) {
+        this.name = name;
+        return this;
+    }
+}
@@ -0,0 +1,19 @@
+package entity;
+
+import cn.xnatural.jpa.SegmentIdEntity;
+
+import javax.persistence.Entity;
+
+@Entity
+public class TestSegmentIdEntity extends SegmentIdEntity {
+    private String name;
+
+    public String getName() {
+        return name;
+    }
+
+    public TestSegmentIdEntity setName(String name) {
+        this.name = name;
+        return this;
+    }
+}
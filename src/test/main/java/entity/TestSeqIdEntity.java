@@ -0,0 +1,19 @@
+package entity;
+
+import cn.xnatural.jpa.SeqIdEntity;
+
+import javax.persistence.Entity;
+
+@Entity
+public class TestSeqIdEntity extends SeqIdEntity {
+    private String name;
+
+    public String getName() {
+        return name;
+    }
+
+    public TestSeqIdEntity setName(String name) {
+        this.name = name;
+        return this;
+    }
+}
@@ -0,0 +1,19 @@
+package entity;
+
+import cn.xnatural.jpa.SnowFlakeIdEntity;
+
+import javax.persistence.Entity;
+
+@Entity
+public class TestSnowFlakeEntity extends SnowFlakeIdEntity {
+    private String name;
+
+    public String getName() {
+        return name;
+    }
+
+    public TestSnowFlakeEntity setName(String name) {
+        this.name = name;
+        return this;
+    }
+}
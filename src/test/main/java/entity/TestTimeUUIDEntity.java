@@ -0,0 +1,19 @@
+package entity;
+
+import cn.xnatural.jpa.TimeUUIDEntity;
+
+import javax.persistence.Entity;
+
+@Entity
+public class TestTimeUUIDEntity extends TimeUUIDEntity {
+    private String name;
+
+    public String getName() {
+        return name;
+    }
+
+    public TestTimeUUIDEntity setName(String name) {
+        this.name = name;
+        return this;
+    }
+}